@@ -1,59 +1,52 @@
 package gitlet;
 
 import java.io.File;
-import java.io.Serializable;
-import java.util.ArrayList;
-import java.util.List;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 
-/** The Blob class.
+/** The Blob class. A blob is the content of one working file, kept in
+ *  the object store under the hash of that content. Working files are
+ *  hashed and stored as streams by WorkTree, and blobs are checked out
+ *  through channels, so the memory they need does not depend on the size
+ *  of the file.
  * @author Qindan Zhu
  */
-public class Blob implements Serializable {
-    /** Name of file.*/
-    private String _name;
-    /** Content of file.*/
-    private byte[] _content;
-    /** Content of file as a string.*/
-    private String _contentstr;
-    /** Hashcode of the blob.*/
-    private String _hashcode;
+public class Blob {
 
-    /**Constructor for Blob with NAME of the file.
-     */
-    public Blob(String name) {
-        File file = new File(name);
-        _name = name;
-        _content = Utils.readContents(file);
-        _contentstr = Utils.readContentsAsString(file);
-        _hashcode = hash();
+    /** Return the content of the blob with HASHCODE.*/
+    public static byte[] content(String hashcode) {
+        if (ObjectStore.type(hashcode) != ObjectStore.MANIFEST) {
+            return ObjectStore.read(hashcode);
+        }
+        try (InputStream in = Chunker.open(hashcode)) {
+            return in.readAllBytes();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
     }
 
-    /** Return the name of blob.*/
-    public String name() {
-        return _name;
-    }
-
-    /** Return the content of blob.*/
-    public byte[] content() {
-        return _content;
-    }
-
-    /** Return the content of blob as a string.*/
-    public String contentstr() {
-        return _contentstr;
-    }
-
-    /** Return the hashcode.*/
-    public String hashcode() {
-        return _hashcode;
-    }
-    /** Use SHA1 to return the hashcode.*/
-    private String hash() {
-        List<Object> blob = new ArrayList<>();
-        blob.add("Blob");
-        blob.add(_name);
-        blob.add(_content);
-        blob.add(_contentstr);
-        return Utils.sha1(blob);
+    /** Write the content of the blob with HASHCODE to FILE, from the
+     *  object cache if it holds it and otherwise transferred from the
+     *  object store, chunk by chunk if it is chunked.*/
+    public static void checkout(String hashcode, File file) {
+        try (FileChannel out = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            byte[] cached = ObjectCache.shared().get(hashcode);
+            if (cached != null) {
+                Codec.write(ByteBuffer.wrap(cached), out);
+            } else if (ObjectStore.type(hashcode) == ObjectStore.MANIFEST) {
+                for (String chunk : Chunker.chunks(hashcode)) {
+                    ObjectStore.transfer(chunk, out);
+                }
+            } else {
+                ObjectStore.transfer(hashcode, out);
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
     }
 }
@@ -0,0 +1,219 @@
+package gitlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
+
+/** Content-defined chunking of large files. A chunked blob is stored as
+ *  a manifest listing the hashes and lengths of its chunks, each chunk
+ *  being a blob of its own, so that versions of a file and different
+ *  files share the chunks they have in common. The manifest is stored
+ *  under the hash of the whole content, the same hash an unchunked blob
+ *  would have. Chunk boundaries are found with the FastCDC gear hash:
+ *  a boundary falls where the hash of the last bytes matches a mask,
+ *  with a stricter mask before the average chunk length and a looser
+ *  one after it, so an edit only moves the boundaries near it.
+ *  Chunking applies to files whose names match one of the glob patterns
+ *  of chunk.paths, and to files of at least chunk.threshold bytes.
+ *  @author Qindan Zhu
+ */
+class Chunker {
+
+    /** Config key of the size from which files are chunked.*/
+    static final String THRESHOLD_KEY = "chunk.threshold";
+    /** Config key of the comma-separated patterns of chunked files.*/
+    static final String PATHS_KEY = "chunk.paths";
+    /** Shortest chunk, except for the last one.*/
+    static final int MIN_CHUNK = 16 << 10;
+    /** Average chunk length aimed at.*/
+    static final int AVG_CHUNK = 64 << 10;
+    /** Longest chunk.*/
+    static final int MAX_CHUNK = 256 << 10;
+    /** Magic number of an encoded manifest.*/
+    static final int MAGIC = 0x47434e4b;
+    /** Format version of an encoded manifest.*/
+    static final int VERSION = 1;
+    /** Mask of the boundaries before the average length.*/
+    private static final long MASK_SMALL = -1L << (Long.SIZE - 18);
+    /** Mask of the boundaries after the average length.*/
+    private static final long MASK_LARGE = -1L << (Long.SIZE - 14);
+    /** Seed of the gear table, fixed so that boundaries never change.*/
+    private static final long GEAR_SEED = 0x6769746c6574L;
+    /** Random value added to the hash for each byte value.*/
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(GEAR_SEED);
+        for (int i = 0; i < GEAR.length; i += 1) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    /** The patterns of chunk.paths, or null if not yet read.*/
+    private static List<PathMatcher> _patterns;
+    /** The value of chunk.paths the patterns were read from.*/
+    private static String _patternsvalue;
+
+    /** Return true if the file NAME of SIZE bytes is to be chunked.*/
+    static boolean enabled(String name, long size) {
+        int threshold = Config.getint(THRESHOLD_KEY, 0);
+        if (threshold > 0 && size >= threshold) {
+            return true;
+        }
+        for (PathMatcher pattern : patterns()) {
+            if (pattern.matches(Paths.get(name))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Return the end of the chunk of DATA that starts at START, where
+     *  the data ends at END.*/
+    static int cut(byte[] data, int start, int end) {
+        int length = end - start;
+        if (length <= MIN_CHUNK) {
+            return end;
+        }
+        int normal = start + Math.min(length, AVG_CHUNK);
+        int limit = start + Math.min(length, MAX_CHUNK);
+        long hash = 0;
+        int i = start + MIN_CHUNK;
+        for (; i < normal; i += 1) {
+            hash = (hash << 1) + GEAR[data[i] & 0xff];
+            if ((hash & MASK_SMALL) == 0) {
+                return i + 1;
+            }
+        }
+        for (; i < limit; i += 1) {
+            hash = (hash << 1) + GEAR[data[i] & 0xff];
+            if ((hash & MASK_LARGE) == 0) {
+                return i + 1;
+            }
+        }
+        return limit;
+    }
+
+    /** Store everything read from IN as chunks and a manifest, unless
+     *  already present, and return the hash of the whole content. At
+     *  most two chunks are held in memory.*/
+    static String write(InputStream in) throws IOException {
+        MessageDigest md = Utils.newSha1();
+        md.update("blob".getBytes(StandardCharsets.UTF_8));
+        List<String> hashes = new ArrayList<>();
+        List<Integer> lengths = new ArrayList<>();
+        byte[] buffer = new byte[2 * MAX_CHUNK];
+        int available = 0;
+        long size = 0;
+        while (true) {
+            available += in.readNBytes(buffer, available,
+                    buffer.length - available);
+            if (available == 0) {
+                break;
+            }
+            int end = cut(buffer, 0, available);
+            md.update(buffer, 0, end);
+            hashes.add(ObjectStore.write(
+                    new ByteArrayInputStream(buffer, 0, end)));
+            lengths.add(end);
+            size += end;
+            available -= end;
+            System.arraycopy(buffer, end, buffer, 0, available);
+        }
+        String hash = Utils.toHex(md.digest());
+        ObjectStore.write(hash, ObjectStore.MANIFEST,
+                encode(size, hashes, lengths));
+        return hash;
+    }
+
+    /** Return a stream of the content of the blob with HASH, joining its
+     *  chunks if it is stored as a manifest.*/
+    static InputStream open(String hash) {
+        if (ObjectStore.type(hash) != ObjectStore.MANIFEST) {
+            return ObjectStore.open(hash);
+        }
+        Iterator<String> chunks = chunks(hash).iterator();
+        return new SequenceInputStream(new Enumeration<InputStream>() {
+            @Override
+            public boolean hasMoreElements() {
+                return chunks.hasNext();
+            }
+
+            @Override
+            public InputStream nextElement() {
+                return ObjectStore.open(chunks.next());
+            }
+        });
+    }
+
+    /** Return the hashes of the chunks of the manifest with HASH.*/
+    static List<String> chunks(String hash) {
+        try {
+            DataInputStream in = new DataInputStream(
+                    new ByteArrayInputStream(ObjectStore.read(hash)));
+            Encoding.readheader(in, MAGIC, VERSION);
+            in.readLong();
+            int count = Encoding.readlength(in);
+            List<String> hashes = new ArrayList<>(count);
+            for (int i = 0; i < count; i += 1) {
+                hashes.add(Encoding.readhash(in));
+                Encoding.readlength(in);
+            }
+            return hashes;
+        } catch (IOException excp) {
+            throw Utils.error("Corrupt manifest %s.", hash);
+        }
+    }
+
+    /** Return the encoded manifest of a content of SIZE bytes made of the
+     *  chunks with HASHES and LENGTHS.*/
+    private static byte[] encode(long size, List<String> hashes,
+                                 List<Integer> lengths) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        Encoding.writeheader(out, MAGIC, VERSION);
+        out.writeLong(size);
+        Encoding.writelength(out, hashes.size());
+        for (int i = 0; i < hashes.size(); i += 1) {
+            Encoding.writehash(out, hashes.get(i));
+            Encoding.writelength(out, lengths.get(i));
+        }
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    /** Return the patterns of chunk.paths, reading them again whenever
+     *  its value changes.*/
+    private static synchronized List<PathMatcher> patterns() {
+        String value = Config.get(PATHS_KEY);
+        if (_patterns == null || !Objects.equals(value, _patternsvalue)) {
+            List<PathMatcher> patterns = new ArrayList<>();
+            if (value != null) {
+                for (String glob : value.split(",")) {
+                    if (!glob.trim().isEmpty()) {
+                        patterns.add(FileSystems.getDefault()
+                                .getPathMatcher("glob:" + glob.trim()));
+                    }
+                }
+            }
+            _patterns = patterns;
+            _patternsvalue = value;
+        }
+        return _patterns;
+    }
+}
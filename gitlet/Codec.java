@@ -0,0 +1,177 @@
+package gitlet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/** A compression format for files under .gitlet. Each compressed file
+ *  starts with the id of the codec that wrote it, so files written at
+ *  different settings can be read side by side.
+ *  @author Qindan Zhu
+ */
+abstract class Codec {
+
+    /** Config key holding the compression level, 0 (none) to 9 (best).*/
+    static final String LEVEL_KEY = "core.compression";
+    /** Buffer size used by the streams.*/
+    static final int BUFFER_SIZE = 8192;
+
+    /** Stores data unchanged.*/
+    static final Codec NONE = new Codec() {
+        @Override
+        int id() {
+            return 0;
+        }
+
+        @Override
+        OutputStream compress(OutputStream out) {
+            return out;
+        }
+
+        @Override
+        InputStream decompress(InputStream in) {
+            return in;
+        }
+
+        @Override
+        void transfer(ByteBuffer data, WritableByteChannel out)
+            throws IOException {
+            write(data, out);
+        }
+    };
+
+    /** Compresses data with Deflate.*/
+    static final Codec DEFLATE = new Codec() {
+        @Override
+        int id() {
+            return 1;
+        }
+
+        @Override
+        OutputStream compress(OutputStream out) {
+            Deflater deflater = new Deflater(level());
+            return new DeflaterOutputStream(out, deflater, BUFFER_SIZE) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        deflater.end();
+                    }
+                }
+            };
+        }
+
+        @Override
+        InputStream decompress(InputStream in) {
+            return new InflaterInputStream(in);
+        }
+
+        @Override
+        void transfer(ByteBuffer data, WritableByteChannel out)
+            throws IOException {
+            Inflater inflater = new Inflater();
+            ByteBuffer buffer = OUTPUT.get();
+            try {
+                inflater.setInput(data);
+                while (!inflater.finished()) {
+                    buffer.clear();
+                    if (inflater.inflate(buffer) == 0
+                            && !inflater.finished()
+                            && (inflater.needsInput()
+                                || inflater.needsDictionary())) {
+                        throw new IOException("truncated object");
+                    }
+                    buffer.flip();
+                    write(buffer, out);
+                }
+            } catch (DataFormatException excp) {
+                throw new IOException(excp.getMessage());
+            } finally {
+                inflater.end();
+            }
+        }
+    };
+
+    /** Direct buffer of each thread that data is decompressed into
+     *  before being written to a channel.*/
+    private static final ThreadLocal<ByteBuffer> OUTPUT =
+        ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(
+                BUFFER_SIZE));
+
+    /** Return the id written in front of data compressed by this codec.*/
+    abstract int id();
+
+    /** Return a stream compressing everything written to it into OUT.*/
+    abstract OutputStream compress(OutputStream out);
+
+    /** Return a stream of the data decompressed from IN.*/
+    abstract InputStream decompress(InputStream in);
+
+    /** Write the data decompressed from the remaining bytes of DATA to
+     *  OUT. Stored data is written straight from DATA, and compressed
+     *  data goes through a fixed-size direct buffer, so that neither is
+     *  copied onto the heap.*/
+    abstract void transfer(ByteBuffer data, WritableByteChannel out)
+        throws IOException;
+
+    /** Write the remaining bytes of DATA to OUT.*/
+    static void write(ByteBuffer data, WritableByteChannel out)
+        throws IOException {
+        while (data.hasRemaining()) {
+            out.write(data);
+        }
+    }
+
+    /** Return the codec with ID.*/
+    static Codec forid(int id) {
+        switch (id) {
+        case 0:
+            return NONE;
+        case 1:
+            return DEFLATE;
+        default:
+            throw Utils.error("Unknown codec %d.", id);
+        }
+    }
+
+    /** Return the codec selected by the configured compression level.*/
+    static Codec configured() {
+        return level() == 0 ? NONE : DEFLATE;
+    }
+
+    /** Return the configured compression level.*/
+    static int level() {
+        int level = Config.getint(LEVEL_KEY, Deflater.DEFAULT_COMPRESSION);
+        if (level < Deflater.DEFAULT_COMPRESSION
+                || level > Deflater.BEST_COMPRESSION) {
+            return Deflater.DEFAULT_COMPRESSION;
+        }
+        return level;
+    }
+
+    /** Write the id of the configured codec to OUT and return a stream
+     *  compressing into OUT with it.*/
+    static OutputStream wrap(OutputStream out) throws IOException {
+        Codec codec = configured();
+        out.write(codec.id());
+        return codec.compress(out);
+    }
+
+    /** Read the codec id from IN and return a stream decompressing the
+     *  rest of IN.*/
+    static InputStream unwrap(InputStream in) throws IOException {
+        int id = in.read();
+        if (id < 0) {
+            throw new IOException("empty file");
+        }
+        return forid(id).decompress(in);
+    }
+}
@@ -1,26 +1,50 @@
 package gitlet;
 
-import java.io.Serializable;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 
-/**The commit class.
+/**The commit class. A commit is stored in the object store as a record
+ * holding its parents as raw hashes, its time as seconds since the epoch
+ * and a zone offset, its message, and the raw hash of its top {@link Tree}.
+ * Commits of format version 1 hold their file names with the raw hashes
+ * of their blobs instead.
  * @author Qindan Zhu
  */
-public class Commit implements Serializable {
+public class Commit {
+    /** Magic number of an encoded commit.*/
+    static final int MAGIC = 0x47434d54;
+    /** Format version of an encoded commit.*/
+    static final int VERSION = 2;
+    /** First format version of commits pointing to a tree.*/
+    static final int TREE_VERSION = 2;
+    /** Format of the time of a commit.*/
+    static final DateTimeFormatter TIME_FORMAT =
+        DateTimeFormatter.ofPattern("EEE MMM d HH:mm:ss yyyy xxxx");
+    /** Zone offset of the initial commit, in seconds.*/
+    static final int INITIAL_OFFSET = -8 * 3600;
+
     /** Message of commit.*/
     private String _message;
-    /** Include blobs of the commit.*/
-    private HashMap<String, Blob> _blobs = new HashMap<>();
-    /** Blob names of the commit.*/
-    private ArrayList<String> _blobnames = new ArrayList<>();
-    /** Blob contents of the commits in the format of string.*/
-    private ArrayList<String> _blobcontentstrs = new ArrayList<>();
-    /** Time of the commit.*/
-    private String _time;
+    /** Blob hashcodes of the commit, keyed by file name, or null if not
+     *  yet read from its tree.*/
+    private HashMap<String, String> _blobs = new HashMap<>();
+    /** Hash of the top tree of the commit, or null if it has no files or
+     *  its tree is not yet written.*/
+    private String _tree;
+    /** Time of the commit in seconds since the epoch.*/
+    private long _timestamp;
+    /** Zone offset of the time of the commit in seconds.*/
+    private int _offset;
     /** Parent id of the commit.*/
     private String _parentid;
     /** Hashcode of the commit.*/
@@ -37,22 +61,32 @@ public class Commit implements Serializable {
 
     /** Return the time of the commit.*/
     public String time() {
-        return _time;
+        return ZonedDateTime.ofInstant(Instant.ofEpochSecond(_timestamp),
+                ZoneOffset.ofTotalSeconds(_offset)).format(TIME_FORMAT);
     }
 
-    /** return the blobs of the commit.*/
-    public HashMap<String, Blob> blobs() {
-        return _blobs;
+    /** Return the time of the commit in seconds since the epoch.*/
+    public long timestamp() {
+        return _timestamp;
     }
 
-    /** return the blob names of the commit.*/
-    public ArrayList<String> blobnames() {
-        return _blobnames;
+    /** return the blob hashcodes of the commit keyed by file name.*/
+    public HashMap<String, String> blobs() {
+        if (_blobs == null) {
+            _blobs = new HashMap<>();
+            Tree.flatten(_tree, "", _blobs);
+        }
+        return _blobs;
     }
 
-    /** Return the blob contents of the commit.*/
-    public ArrayList<String> blobcontentstrs() {
-        return _blobcontentstrs;
+    /** Return the hash of the top tree of the commit, or null if it has
+     *  no files. The tree of a commit of the first format version is
+     *  written on first use.*/
+    public String tree() {
+        if (_tree == null && _blobs != null && !_blobs.isEmpty()) {
+            _tree = Tree.write(_blobs);
+        }
+        return _tree;
     }
 
     /** Return the parentid of the commit.*/
@@ -74,39 +108,26 @@ public class Commit implements Serializable {
     public String mergeid() {
         return _mergeid;
     }
-    /**Constructor for normal commit based on MESSAGE,
-     * BLOBS, PARENTID.*/
-    public Commit(String message, HashMap<String, Blob> blobs,
-                  String parentid) {
+    /**Constructor for normal commit based on MESSAGE, the hash of its
+     * TREE, or null if it has no files, and PARENTID.*/
+    public Commit(String message, String tree, String parentid) {
         _message = message;
-        _blobs = blobs;
+        _tree = tree;
+        _blobs = null;
         _parentid = parentid;
         ZonedDateTime time = ZonedDateTime.now();
-        _time = time.format(DateTimeFormatter.ofPattern
-                ("EEE MMM d HH:mm:ss yyyy xxxx"));
-        for (String blobname:blobs.keySet()) {
-            _blobnames.add(blobname);
-            _blobcontentstrs.add(blobs.get(blobname).contentstr());
-        }
+        _timestamp = time.toEpochSecond();
+        _offset = time.getOffset().getTotalSeconds();
         _hashcode = hash();
     }
 
-    /**Constructor for a merge commit based on MESSAGE,
-     * BLOBS, PARENTID and MERGEPARENTID.*/
-    public Commit(String message, HashMap<String, Blob> blobs,
+    /**Constructor for a merge commit based on MESSAGE, TREE,
+     * PARENTID and MERGEPARENTID.*/
+    public Commit(String message, String tree,
                   String parentid, String mergeparentid) {
+        this(message, tree, parentid);
         _mergeid = mergeparentid;
         _merge = true;
-        _message = message;
-        _blobs = blobs;
-        _parentid = parentid;
-        ZonedDateTime time = ZonedDateTime.now();
-        _time = time.format(DateTimeFormatter.ofPattern
-                ("EEE MMM d HH:mm:ss yyyy xxxx"));
-        for (String blobname:blobs.keySet()) {
-            _blobnames.add(blobname);
-            _blobcontentstrs.add(blobs.get(blobname).contentstr());
-        }
         _hashcode = hash();
     }
 
@@ -114,19 +135,110 @@ public class Commit implements Serializable {
     /**Construct for initial commit given the MESSAGE and BRANCH.*/
     public Commit(String message) {
         _message = message;
-        _time = "Wed Dec 31 16:00:00 1969 -0800";
+        _timestamp = 0;
+        _offset = INITIAL_OFFSET;
         _parentid = "";
         _hashcode = hash();
     }
+
+    /**Constructor for a commit whose fields are filled in by decode.*/
+    private Commit() {
+    }
+
+    /** Return the commit with HASHCODE from the object store.*/
+    public static Commit fromFile(String hashcode) {
+        return decode(hashcode, ObjectStore.read(hashcode));
+    }
+
+    /** Return the commit with HASHCODE from the object store without its
+     *  blobs, reading only as much of it as its message ends.*/
+    public static Commit header(String hashcode) {
+        try (DataInputStream in = new DataInputStream(
+                ObjectStore.open(hashcode))) {
+            return decode(hashcode, in, false);
+        } catch (IOException excp) {
+            throw Utils.error("Corrupt commit %s.", hashcode);
+        }
+    }
+
+    /** Write this commit to the object store.*/
+    public void save() {
+        ObjectStore.write(_hashcode, ObjectStore.COMMIT, encode());
+    }
+
+    /** Return the encoded form of this commit.*/
+    byte[] encode() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            Encoding.writeheader(out, MAGIC, VERSION);
+            out.writeBoolean(!_parentid.equals(""));
+            if (!_parentid.equals("")) {
+                Encoding.writehash(out, _parentid);
+            }
+            out.writeBoolean(_merge);
+            if (_merge) {
+                Encoding.writehash(out, _mergeid);
+            }
+            out.writeLong(_timestamp);
+            out.writeInt(_offset);
+            Encoding.writestring(out, _message);
+            out.writeBoolean(tree() != null);
+            if (_tree != null) {
+                Encoding.writehash(out, _tree);
+            }
+            out.close();
+            return bytes.toByteArray();
+        } catch (IOException excp) {
+            throw Utils.error("Internal error serializing commit.");
+        }
+    }
+
+    /** Return the commit with HASHCODE encoded in DATA.*/
+    static Commit decode(String hashcode, byte[] data) {
+        try {
+            return decode(hashcode, new DataInputStream(
+                    new ByteArrayInputStream(data)), true);
+        } catch (IOException excp) {
+            throw Utils.error("Corrupt commit %s.", hashcode);
+        }
+    }
+
+    /** Return the commit with HASHCODE read from IN, with its blobs or
+     *  tree if BLOBS.*/
+    private static Commit decode(String hashcode, DataInputStream in,
+                                 boolean blobs) throws IOException {
+        int version = Encoding.readheader(in, MAGIC, VERSION);
+        Commit commit = new Commit();
+        commit._hashcode = hashcode;
+        commit._parentid = in.readBoolean()
+            ? Encoding.readhash(in) : "";
+        commit._merge = in.readBoolean();
+        if (commit._merge) {
+            commit._mergeid = Encoding.readhash(in);
+        }
+        commit._timestamp = in.readLong();
+        commit._offset = in.readInt();
+        commit._message = Encoding.readstring(in);
+        if (blobs && version < TREE_VERSION) {
+            commit._blobs = Encoding.readhashmap(in);
+        } else if (blobs) {
+            commit._tree = in.readBoolean() ? Encoding.readhash(in) : null;
+            commit._blobs = commit._tree == null ? new HashMap<>() : null;
+        }
+        return commit;
+    }
+
     /** Use SHA1 to return the hashcode for commit.*/
     private String hash() {
         List<Object> commit = new ArrayList<>();
         commit.add("Commit");
         commit.add(_message);
         commit.add(_parentid);
-        commit.add(_time);
-        commit.addAll(_blobnames);
-        commit.addAll(_blobcontentstrs);
+        commit.add(time());
+        if (_tree != null) {
+            commit.add(_tree);
+        }
         if (_merge) {
             commit.add(_mergeid);
         }
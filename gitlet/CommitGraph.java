@@ -0,0 +1,314 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/** The commit graph: one fixed-width row per commit, in the order the
+ *  commits were made, holding its hash, the row numbers of its parent and
+ *  merge parent, its time and its generation number. The generation of a
+ *  commit is one more than the largest generation of its parents, so an
+ *  ancestor always has a smaller generation than its descendants.
+ *  Ancestry walks run over the rows without reading any commit. The file
+ *  is appended to as commits are made.
+ *  @author Qindan Zhu
+ */
+class CommitGraph {
+
+    /** The commit-graph file.*/
+    static final File GRAPH_FILE =
+        Utils.join(Main.MAIN_FOLDER, "commit-graph");
+    /** Magic number of the commit-graph file.*/
+    static final int MAGIC = 0x47434752;
+    /** Format version of the commit-graph file.*/
+    static final int VERSION = 1;
+    /** Length of a row: hash, parent, merge parent, time and generation.*/
+    static final int ROW_LENGTH = Encoding.HASH_LENGTH + 4 + 4 + 8 + 4;
+    /** Row number standing for no commit.*/
+    static final int NONE = -1;
+    /** Mark of a commit reachable from the first side of a merge base.*/
+    private static final byte FROM_A = 1;
+    /** Mark of a commit reachable from the second side of a merge base.*/
+    private static final byte FROM_B = 2;
+    /** Mark of a commit below a common ancestor.*/
+    private static final byte STALE = 4;
+
+    /** Raw hashes of the commits, one after another.*/
+    private byte[] _hashes;
+    /** Row of the parent of each commit.*/
+    private int[] _parents;
+    /** Row of the merge parent of each commit.*/
+    private int[] _merges;
+    /** Time of each commit in seconds since the epoch.*/
+    private long[] _times;
+    /** Generation number of each commit.*/
+    private int[] _generations;
+    /** Number of rows.*/
+    private int _count;
+    /** Number of rows in the file.*/
+    private int _saved;
+    /** Rows keyed by hexadecimal hash, or null if not yet built.*/
+    private HashMap<String, Integer> _rows;
+
+    /** An empty graph with room for CAPACITY rows.*/
+    private CommitGraph(int capacity) {
+        capacity = Math.max(capacity, 1);
+        _hashes = new byte[capacity * Encoding.HASH_LENGTH];
+        _parents = new int[capacity];
+        _merges = new int[capacity];
+        _times = new long[capacity];
+        _generations = new int[capacity];
+    }
+
+    /** Return the graph read from its file, which must have a row for
+     *  each of COMMITS, the hashes of all commits in the order they were
+     *  made. If there is no such file, or it does not match COMMITS, as
+     *  after a crash between writing the commit list and the graph, the
+     *  graph is built from COMMITS and written out.*/
+    static CommitGraph read(List<String> commits) {
+        CommitGraph graph = GRAPH_FILE.isFile() ? readfile() : null;
+        int last = commits.size() - 1;
+        if (graph != null && graph._count == commits.size()
+                && (last < 0 || graph.hash(last).equals(commits.get(last)))) {
+            return graph;
+        }
+        GRAPH_FILE.delete();
+        graph = new CommitGraph(commits.size());
+        for (String hash : commits) {
+            graph.add(Commit.fromFile(hash));
+        }
+        graph.save();
+        return graph;
+    }
+
+    /** Return the graph read from its file, or null if it ends in a
+     *  partly written row.*/
+    private static CommitGraph readfile() {
+        ByteBuffer data = ByteBuffer.wrap(Utils.readContents(GRAPH_FILE));
+        if (data.getInt() != MAGIC || data.get() > VERSION) {
+            throw Utils.error("Corrupt commit graph.");
+        }
+        if (data.remaining() % ROW_LENGTH != 0) {
+            return null;
+        }
+        int count = data.remaining() / ROW_LENGTH;
+        CommitGraph graph = new CommitGraph(count);
+        for (int i = 0; i < count; i += 1) {
+            data.get(graph._hashes, i * Encoding.HASH_LENGTH,
+                    Encoding.HASH_LENGTH);
+            graph._parents[i] = data.getInt();
+            graph._merges[i] = data.getInt();
+            graph._times[i] = data.getLong();
+            graph._generations[i] = data.getInt();
+        }
+        graph._count = count;
+        graph._saved = count;
+        return graph;
+    }
+
+    /** Add a row for COMMIT, whose parents must already have rows.
+     *  Fails, adding nothing, if they do not.*/
+    void add(Commit commit) {
+        if (_count == _parents.length) {
+            int capacity = _count * 2;
+            _hashes = Arrays.copyOf(_hashes,
+                    capacity * Encoding.HASH_LENGTH);
+            _parents = Arrays.copyOf(_parents, capacity);
+            _merges = Arrays.copyOf(_merges, capacity);
+            _times = Arrays.copyOf(_times, capacity);
+            _generations = Arrays.copyOf(_generations, capacity);
+        }
+        int row = _count;
+        System.arraycopy(Utils.fromHex(commit.hashcode()), 0, _hashes,
+                row * Encoding.HASH_LENGTH, Encoding.HASH_LENGTH);
+        _parents[row] = commit.parentid().equals("")
+            ? NONE : parentrow(commit.parentid());
+        _merges[row] = commit.merge() ? parentrow(commit.mergeid()) : NONE;
+        _times[row] = commit.timestamp();
+        int generation = 0;
+        if (_parents[row] != NONE) {
+            generation = _generations[_parents[row]];
+        }
+        if (_merges[row] != NONE) {
+            generation = Math.max(generation, _generations[_merges[row]]);
+        }
+        _generations[row] = generation + 1;
+        _count += 1;
+        if (_rows != null) {
+            _rows.put(commit.hashcode(), row);
+        }
+    }
+
+    /** Return the row of the parent with HASH of a commit being added.*/
+    private int parentrow(String hash) {
+        int row = row(hash);
+        if (row == NONE) {
+            throw Utils.error("Commit graph has no row for commit %s.",
+                    hash);
+        }
+        return row;
+    }
+
+    /** Append the rows added since the file was written to it.*/
+    void save() {
+        if (_saved == _count) {
+            return;
+        }
+        boolean created = !GRAPH_FILE.isFile();
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(GRAPH_FILE,
+                        true)))) {
+            if (created) {
+                Encoding.writeheader(out, MAGIC, VERSION);
+            }
+            for (int i = _saved; i < _count; i += 1) {
+                out.write(_hashes, i * Encoding.HASH_LENGTH,
+                        Encoding.HASH_LENGTH);
+                out.writeInt(_parents[i]);
+                out.writeInt(_merges[i]);
+                out.writeLong(_times[i]);
+                out.writeInt(_generations[i]);
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        _saved = _count;
+    }
+
+    /** Drop the rows after the first COUNT, none of which may have been
+     *  written to the file.*/
+    void truncate(int count) {
+        if (count < _saved) {
+            throw Utils.error("Cannot drop saved commit graph rows.");
+        }
+        _count = count;
+        _rows = null;
+    }
+
+    /** Return the number of rows.*/
+    int count() {
+        return _count;
+    }
+
+    /** Return the row of the commit with HASH, or NONE if there is none.*/
+    int row(String hash) {
+        if (_rows == null) {
+            _rows = new HashMap<>(_count * 2);
+            for (int i = 0; i < _count; i += 1) {
+                _rows.put(hash(i), i);
+            }
+        }
+        Integer row = _rows.get(hash);
+        return row == null ? NONE : row;
+    }
+
+    /** Return the hash of the commit in ROW.*/
+    String hash(int row) {
+        return Utils.toHex(Arrays.copyOfRange(_hashes,
+                row * Encoding.HASH_LENGTH,
+                (row + 1) * Encoding.HASH_LENGTH));
+    }
+
+    /** Return the row of the parent of the commit in ROW, or NONE.*/
+    int parent(int row) {
+        return _parents[row];
+    }
+
+    /** Return the row of the merge parent of the commit in ROW, or NONE.*/
+    int merge(int row) {
+        return _merges[row];
+    }
+
+    /** Return the rows of the parents of the commit in ROW.*/
+    List<Integer> parents(int row) {
+        List<Integer> parents = new ArrayList<>(2);
+        if (_parents[row] != NONE) {
+            parents.add(_parents[row]);
+        }
+        if (_merges[row] != NONE) {
+            parents.add(_merges[row]);
+        }
+        return parents;
+    }
+
+    /** Return the time of the commit in ROW in seconds since the epoch.*/
+    long time(int row) {
+        return _times[row];
+    }
+
+    /** Return the generation number of the commit in ROW.*/
+    int generation(int row) {
+        return _generations[row];
+    }
+
+    /** Return the row of the best common ancestor of the commits in rows
+     *  A and B, or NONE if they have none. Both histories are walked at
+     *  once, newest generation first, marking each commit with the sides
+     *  it is reachable from. A commit reachable from both is a common
+     *  ancestor, and marks its own ancestors stale; the walk stops as
+     *  soon as only stale commits are left to visit. Of several common
+     *  ancestors none of which descends from another, the one with the
+     *  highest generation, then the latest, is returned. A count of the
+     *  queued rows not marked stale tells when to stop without scanning
+     *  the queue.*/
+    int mergebase(int a, int b) {
+        if (a == b) {
+            return a;
+        }
+        byte[] flags = new byte[_count];
+        int[] queued = new int[_count];
+        PriorityQueue<Integer> queue = new PriorityQueue<>(
+                Comparator.comparingInt((Integer row) -> -_generations[row])
+                .thenComparingLong(row -> -_times[row])
+                .thenComparingInt(row -> -row));
+        flags[a] |= FROM_A;
+        flags[b] |= FROM_B;
+        queue.add(a);
+        queue.add(b);
+        queued[a] += 1;
+        queued[b] += 1;
+        int active = 2;
+        int best = NONE;
+        while (active > 0) {
+            int row = queue.poll();
+            queued[row] -= 1;
+            if ((flags[row] & STALE) == 0) {
+                active -= 1;
+            }
+            int mark = flags[row] & (FROM_A | FROM_B | STALE);
+            if ((mark & (FROM_A | FROM_B)) == (FROM_A | FROM_B)) {
+                if ((mark & STALE) == 0) {
+                    if (best == NONE) {
+                        best = row;
+                    }
+                    active -= queued[row];
+                }
+                mark |= STALE;
+                flags[row] |= STALE;
+            }
+            for (int parent : parents(row)) {
+                if ((flags[parent] & mark) != mark) {
+                    if ((mark & ~flags[parent] & STALE) != 0) {
+                        active -= queued[parent];
+                    }
+                    flags[parent] |= mark;
+                    queue.add(parent);
+                    queued[parent] += 1;
+                    if ((flags[parent] & STALE) == 0) {
+                        active += 1;
+                    }
+                }
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,170 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** A sorted index of commit hashes, used to resolve abbreviated commit
+ *  ids. The file holds the number of commits it covers, which are the
+ *  first ones of the commit list, a fan-out table giving for every first
+ *  byte B the number of hashes starting with a byte <= B, and the sorted
+ *  20-byte hashes. A prefix is looked up by binary search within its
+ *  fan-out range. Commits made since the index was written are not in
+ *  it; the index is rewritten once there are more than MAX_UNINDEXED of
+ *  them.
+ *  @author Qindan Zhu
+ */
+class CommitIndex {
+
+    /** The commit index file.*/
+    static final File INDEX_FILE =
+        Utils.join(Main.MAIN_FOLDER, "commit-index");
+    /** Magic number of the commit index.*/
+    static final int MAGIC = 0x47434958;
+    /** Format version of the commit index.*/
+    static final int VERSION = 1;
+    /** Length of the header: magic, version and count.*/
+    static final int HEADER_LENGTH = 9;
+    /** Number of fan-out entries.*/
+    static final int FANOUT = 256;
+    /** Most commits left out of the index before it is rewritten.*/
+    static final int MAX_UNINDEXED = 64;
+    /** Number of first bytes sharing one leading hex digit.*/
+    private static final int PER_DIGIT = 16;
+
+    /** The index file, or null if there is none.*/
+    private final ByteBuffer _index;
+    /** Number of commits in the index.*/
+    private final int _count;
+
+    /** The index held in INDEX, or the empty index if INDEX is null.*/
+    private CommitIndex(ByteBuffer index) {
+        _index = index;
+        _count = index == null ? 0 : index.getInt(HEADER_LENGTH - 4);
+    }
+
+    /** Return the index read from its file, mapped into memory.*/
+    static CommitIndex read() {
+        if (!INDEX_FILE.isFile()) {
+            return new CommitIndex(null);
+        }
+        try (RandomAccessFile in = new RandomAccessFile(INDEX_FILE, "r");
+             FileChannel channel = in.getChannel()) {
+            ByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY,
+                    0, channel.size());
+            if (index.getInt(0) != MAGIC || index.get(4) > VERSION) {
+                throw Utils.error("Corrupt commit index.");
+            }
+            return new CommitIndex(index);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Write the index of COMMITS, the hashes of all commits in the order
+     *  they were made.*/
+    static void write(List<String> commits) {
+        byte[][] hashes = new byte[commits.size()][];
+        for (int i = 0; i < hashes.length; i += 1) {
+            hashes[i] = Utils.fromHex(commits.get(i));
+        }
+        Arrays.sort(hashes, Arrays::compareUnsigned);
+        int[] fanout = new int[FANOUT];
+        for (byte[] hash : hashes) {
+            fanout[hash[0] & 0xff] += 1;
+        }
+        File temp = Utils.join(Main.MAIN_FOLDER, "commit-index.tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp)))) {
+            Encoding.writeheader(out, MAGIC, VERSION);
+            out.writeInt(hashes.length);
+            int total = 0;
+            for (int count : fanout) {
+                total += count;
+                out.writeInt(total);
+            }
+            for (byte[] hash : hashes) {
+                out.write(hash);
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        if (!temp.renameTo(INDEX_FILE)) {
+            throw Utils.error("Cannot write commit index.");
+        }
+    }
+
+    /** Return the number of commits in the index.*/
+    int count() {
+        return _count;
+    }
+
+    /** Return at most LIMIT hashes in the index starting with the
+     *  hexadecimal PREFIX.*/
+    List<String> find(String prefix, int limit) {
+        List<String> result = new ArrayList<>();
+        if (_count == 0) {
+            return result;
+        }
+        int lo = 0;
+        int hi = _count;
+        if (prefix.length() >= 2) {
+            int first = Integer.parseInt(prefix.substring(0, 2), 16);
+            lo = fanout(first - 1);
+            hi = fanout(first);
+        } else if (prefix.length() == 1) {
+            int digit = Character.digit(prefix.charAt(0), 16);
+            lo = fanout(digit * PER_DIGIT - 1);
+            hi = fanout(digit * PER_DIGIT + PER_DIGIT - 1);
+        }
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compare(mid, prefix) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        for (int k = lo; k < _count && result.size() < limit
+                 && compare(k, prefix) == 0; k += 1) {
+            byte[] hash = new byte[Encoding.HASH_LENGTH];
+            _index.get(position(k), hash);
+            result.add(Utils.toHex(hash));
+        }
+        return result;
+    }
+
+    /** Return the number of hashes whose first byte is at most B.*/
+    private int fanout(int b) {
+        return b < 0 ? 0 : _index.getInt(HEADER_LENGTH + b * 4);
+    }
+
+    /** Return the position of the Kth hash in the file.*/
+    private int position(int k) {
+        return HEADER_LENGTH + FANOUT * 4 + k * Encoding.HASH_LENGTH;
+    }
+
+    /** Return a negative number, zero or a positive number as the Kth
+     *  hash is less than, starts with or is greater than the hexadecimal
+     *  PREFIX.*/
+    private int compare(int k, String prefix) {
+        int start = position(k);
+        for (int i = 0; i < prefix.length(); i += 1) {
+            int b = _index.get(start + i / 2) & 0xff;
+            int digit = i % 2 == 0 ? b >>> 4 : b & 0xf;
+            int diff = digit - Character.digit(prefix.charAt(i), 16);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,72 @@
+package gitlet;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/** Repository settings kept in .gitlet/config as KEY=VALUE lines.
+ *  @author Qindan Zhu
+ */
+class Config {
+
+    /** The config file.*/
+    static final File CONFIG_FILE = Utils.join(Main.MAIN_FOLDER, "config");
+
+    /** The loaded settings, or null if not yet read.*/
+    private static Properties _settings;
+
+    /** Return the value of KEY, or null if it is not set.*/
+    static String get(String key) {
+        return settings().getProperty(key);
+    }
+
+    /** Return the value of KEY as an integer, or DEFAULTVALUE if it is
+     *  unset or not a number.*/
+    static int getint(String key, int defaultvalue) {
+        String value = get(key);
+        if (value == null) {
+            return defaultvalue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException excp) {
+            return defaultvalue;
+        }
+    }
+
+    /** Set KEY to VALUE and write the config file.*/
+    static void set(String key, String value) {
+        settings().setProperty(key, value);
+        try (OutputStream out = new FileOutputStream(CONFIG_FILE)) {
+            _settings.store(out, null);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Forget the settings read, so that they are read again on next
+     *  use.*/
+    static synchronized void reset() {
+        _settings = null;
+    }
+
+    /** Return the settings, reading them on first use.*/
+    private static synchronized Properties settings() {
+        if (_settings == null) {
+            Properties settings = new Properties();
+            if (CONFIG_FILE.isFile()) {
+                try (InputStream in = new FileInputStream(CONFIG_FILE)) {
+                    settings.load(in);
+                } catch (IOException excp) {
+                    throw new IllegalArgumentException(excp.getMessage());
+                }
+            }
+            _settings = settings;
+        }
+        return _settings;
+    }
+}
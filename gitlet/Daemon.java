@@ -0,0 +1,210 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+
+/** A long-running gitlet process serving the commands of one repository
+ *  over a Unix domain socket, so that its caches, pack indexes and
+ *  compiled code stay warm from one command to the next. While the
+ *  socket exists, Main forwards each command to it: the client sends the
+ *  arguments and copies the output it gets back. The daemon runs one
+ *  command at a time and takes the repository lock like any other
+ *  gitlet process. Its output is sent in frames of a length and that
+ *  many bytes, ended by an empty frame and the exit status of the
+ *  command. It reads the repository state afresh for each
+ *  command, which costs far less than the command itself and picks up
+ *  the changes of batches run beside it. It is started with "daemon"
+ *  and stopped with "daemon --stop".
+ *  @author Qindan Zhu
+ */
+class Daemon {
+
+    /** The socket the daemon listens on.*/
+    static final File SOCKET_FILE =
+        Utils.join(Main.MAIN_FOLDER, "daemon.sock");
+    /** Option asking a running daemon to stop.*/
+    static final String STOP = "--stop";
+    /** Status forward returns when no daemon is listening.*/
+    static final int NOT_RUNNING = -1;
+    /** Size of the buffer of the output sent to a client.*/
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /** Modification time of the config file when last read.*/
+    private long _configtime;
+    /** Modification time of the pack folder when last read.*/
+    private long _packtime;
+    /** Marker that the daemon was asked to stop.*/
+    private boolean _stopped;
+
+    /** Run the command in ARGS in the daemon of the repository in the
+     *  working directory, copying its output to System.out, and return
+     *  its exit status. Return NOT_RUNNING if no daemon is listening
+     *  there.*/
+    static int forward(String[] args) {
+        if (!SOCKET_FILE.exists()) {
+            return NOT_RUNNING;
+        }
+        SocketChannel channel;
+        try {
+            channel = SocketChannel.open(
+                    UnixDomainSocketAddress.of(SOCKET_FILE.toPath()));
+        } catch (IOException excp) {
+            return NOT_RUNNING;
+        }
+        try (channel) {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(
+                            Channels.newOutputStream(channel)));
+            Encoding.writestrings(out, Arrays.asList(args));
+            out.flush();
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    Channels.newInputStream(channel), BUFFER_SIZE));
+            byte[] buffer = new byte[BUFFER_SIZE];
+            for (int length = in.readInt(); length > 0;
+                 length = in.readInt()) {
+                while (length > 0) {
+                    int n = Math.min(length, buffer.length);
+                    in.readFully(buffer, 0, n);
+                    System.out.write(buffer, 0, n);
+                    length -= n;
+                }
+            }
+            System.out.flush();
+            return in.readInt();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Handle the daemon command given ARGS when no daemon is running:
+     *  serve the repository in the working directory until stopped.*/
+    static void command(String[] args) throws IOException {
+        if (args.length == 2 && args[1].equals(STOP)) {
+            System.out.println("No daemon is running.");
+        } else if (args.length != 1) {
+            System.out.println("Incorrect operands.");
+        } else if (!Main.MAIN_FOLDER.isDirectory()) {
+            System.out.println("Not in an initialized Gitlet directory.");
+        } else {
+            new Daemon().serve();
+        }
+    }
+
+    /** Accept and run commands until asked to stop, removing the socket
+     *  when done.*/
+    private void serve() throws IOException {
+        SOCKET_FILE.delete();
+        Thread cleanup = new Thread(SOCKET_FILE::delete);
+        Runtime.getRuntime().addShutdownHook(cleanup);
+        try (ServerSocketChannel server =
+                ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(SOCKET_FILE.toPath()));
+            _configtime = Config.CONFIG_FILE.lastModified();
+            _packtime = Pack.PACK_FOLDER.lastModified();
+            while (!_stopped) {
+                try (SocketChannel client = server.accept()) {
+                    handle(client);
+                } catch (IOException excp) {
+                    System.err.println(excp.getMessage());
+                }
+            }
+        } finally {
+            SOCKET_FILE.delete();
+            Runtime.getRuntime().removeShutdownHook(cleanup);
+        }
+    }
+
+    /** Read a command from CLIENT, run it and send back its output and
+     *  exit status.*/
+    private void handle(SocketChannel client) throws IOException {
+        DataInputStream in = new DataInputStream(
+                Channels.newInputStream(client));
+        String[] args = Encoding.readstrings(in).toArray(new String[0]);
+        DataOutputStream frames = new DataOutputStream(
+                new BufferedOutputStream(Channels.newOutputStream(client)));
+        PrintStream out = new PrintStream(new BufferedOutputStream(
+                new FrameOutputStream(frames), BUFFER_SIZE));
+        PrintStream stdout = System.out;
+        System.setOut(out);
+        int status = 0;
+        try {
+            if (args.length > 0 && args[0].equals("daemon")) {
+                if (args.length == 2 && args[1].equals(STOP)) {
+                    _stopped = true;
+                    System.out.println("Daemon stopped.");
+                } else {
+                    System.out.println("A daemon is already running.");
+                }
+            } else {
+                refresh();
+                status = Main.run(args);
+            }
+        } catch (RuntimeException excp) {
+            System.out.println(excp.getMessage() == null
+                    ? "Internal error." : excp.getMessage());
+        } finally {
+            System.setOut(stdout);
+            out.flush();
+        }
+        frames.writeInt(0);
+        frames.writeInt(status);
+        frames.flush();
+    }
+
+    /** Forget the settings and packs read before if their files have
+     *  changed since, as another process may have written them.*/
+    private void refresh() {
+        long configtime = Config.CONFIG_FILE.lastModified();
+        if (configtime != _configtime) {
+            Config.reset();
+            _configtime = configtime;
+        }
+        long packtime = Pack.PACK_FOLDER.lastModified();
+        if (packtime != _packtime) {
+            Pack.reset();
+            _packtime = packtime;
+        }
+    }
+
+    /** An output stream sending each write as a frame of its length and
+     *  its bytes.*/
+    private static class FrameOutputStream extends OutputStream {
+        /** The stream the frames are sent to.*/
+        private final DataOutputStream _out;
+
+        /** A stream sending frames to OUT.*/
+        FrameOutputStream(DataOutputStream out) {
+            _out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len > 0) {
+                _out.writeInt(len);
+                _out.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            _out.flush();
+        }
+    }
+}
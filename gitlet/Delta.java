@@ -0,0 +1,189 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/** Delta encoding of one version of a file against another. A delta is
+ *  the size of the base, the size of the result, then a list of
+ *  instructions: an instruction byte with the high bit set copies a run
+ *  of the base, given by its offset and length; any other instruction
+ *  byte N inserts the N literal bytes that follow it.
+ *  @author Qindan Zhu
+ */
+class Delta {
+
+    /** Length of the blocks of the base that are indexed.*/
+    static final int BLOCK = 16;
+    /** Longest run of literal bytes in one insert instruction.*/
+    static final int MAX_INSERT = 127;
+    /** Instruction byte of a copy.*/
+    static final int COPY = 0x80;
+    /** Most base positions kept for one hash value.*/
+    static final int MAX_CANDIDATES = 16;
+    /** Multiplier of the rolling hash.*/
+    private static final int PRIME = 31;
+    /** Mask selecting the low seven bits of a byte.*/
+    private static final int LOW_BITS = 0x7f;
+
+    /** Return a delta that turns BASE into TARGET.*/
+    static byte[] create(byte[] base, byte[] target) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writevarint(out, base.length);
+        writevarint(out, target.length);
+        int[][] index = index(base);
+        int mask = index.length - 1;
+        int power = 1;
+        for (int i = 1; i < BLOCK; i += 1) {
+            power *= PRIME;
+        }
+        int pending = 0;
+        int i = 0;
+        int hash = target.length >= BLOCK ? hash(target, 0) : 0;
+        while (i + BLOCK <= target.length) {
+            int bestoffset = -1;
+            int bestlength = 0;
+            int[] candidates = index[hash & mask];
+            if (candidates != null) {
+                for (int offset : candidates) {
+                    int length = matchlength(base, offset, target, i);
+                    if (length > bestlength) {
+                        bestlength = length;
+                        bestoffset = offset;
+                    }
+                }
+            }
+            if (bestlength >= BLOCK) {
+                writeinserts(out, target, pending, i);
+                writecopy(out, bestoffset, bestlength);
+                i += bestlength;
+                pending = i;
+                if (i + BLOCK <= target.length) {
+                    hash = hash(target, i);
+                }
+            } else {
+                if (i + BLOCK < target.length) {
+                    hash = (hash - target[i] * power) * PRIME
+                        + target[i + BLOCK];
+                }
+                i += 1;
+            }
+        }
+        writeinserts(out, target, pending, target.length);
+        return out.toByteArray();
+    }
+
+    /** Return the result of applying DELTA to BASE.*/
+    static byte[] apply(byte[] base, byte[] delta) {
+        int[] position = new int[1];
+        int basesize = readvarint(delta, position);
+        if (basesize != base.length) {
+            throw Utils.error("Delta does not fit its base.");
+        }
+        byte[] result = new byte[readvarint(delta, position)];
+        int size = 0;
+        while (position[0] < delta.length) {
+            int op = delta[position[0]] & 0xff;
+            position[0] += 1;
+            if (op == COPY) {
+                int offset = readvarint(delta, position);
+                int length = readvarint(delta, position);
+                System.arraycopy(base, offset, result, size, length);
+                size += length;
+            } else {
+                System.arraycopy(delta, position[0], result, size, op);
+                position[0] += op;
+                size += op;
+            }
+        }
+        if (size != result.length) {
+            throw Utils.error("Corrupt delta.");
+        }
+        return result;
+    }
+
+    /** Return a hash table of the positions of the aligned blocks of
+     *  BASE, keyed by the rolling hash of each block.*/
+    private static int[][] index(byte[] base) {
+        int blocks = base.length / BLOCK;
+        int size = Integer.highestOneBit(Math.max(blocks, 1)) * 2;
+        int[][] index = new int[size][];
+        for (int k = 0; k < blocks; k += 1) {
+            int slot = hash(base, k * BLOCK) & (size - 1);
+            int[] old = index[slot];
+            if (old == null) {
+                index[slot] = new int[] {k * BLOCK};
+            } else if (old.length < MAX_CANDIDATES) {
+                int[] grown = Arrays.copyOf(old, old.length + 1);
+                grown[old.length] = k * BLOCK;
+                index[slot] = grown;
+            }
+        }
+        return index;
+    }
+
+    /** Return the rolling hash of the block of DATA starting at START.*/
+    private static int hash(byte[] data, int start) {
+        int hash = 0;
+        for (int i = start; i < start + BLOCK; i += 1) {
+            hash = hash * PRIME + data[i];
+        }
+        return hash;
+    }
+
+    /** Return the number of equal bytes of BASE from BASESTART and of
+     *  TARGET from TARGETSTART.*/
+    private static int matchlength(byte[] base, int basestart,
+                                   byte[] target, int targetstart) {
+        int n = 0;
+        while (basestart + n < base.length
+               && targetstart + n < target.length
+               && base[basestart + n] == target[targetstart + n]) {
+            n += 1;
+        }
+        return n;
+    }
+
+    /** Write insert instructions to OUT for the bytes of TARGET from
+     *  START to END.*/
+    private static void writeinserts(ByteArrayOutputStream out,
+                                     byte[] target, int start, int end) {
+        while (start < end) {
+            int n = Math.min(MAX_INSERT, end - start);
+            out.write(n);
+            out.write(target, start, n);
+            start += n;
+        }
+    }
+
+    /** Write a copy instruction to OUT for LENGTH bytes at OFFSET.*/
+    private static void writecopy(ByteArrayOutputStream out, int offset,
+                                  int length) {
+        out.write(COPY);
+        writevarint(out, offset);
+        writevarint(out, length);
+    }
+
+    /** Write VALUE to OUT, seven bits per byte, low bits first.*/
+    private static void writevarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~LOW_BITS) != 0) {
+            out.write((value & LOW_BITS) | COPY);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /** Read a number written by writevarint from DATA at POSITION[0],
+     *  advancing POSITION[0] past it.*/
+    private static int readvarint(byte[] data, int[] position) {
+        int value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = data[position[0]] & 0xff;
+            position[0] += 1;
+            value |= (b & LOW_BITS) << shift;
+            shift += 7;
+        } while ((b & COPY) != 0);
+        return value;
+    }
+}
@@ -0,0 +1,463 @@
+package gitlet;
+
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/** A line-level comparison of two texts, found with the O(ND) algorithm
+ *  of Myers in its linear-space form: the middle snake of an optimal edit
+ *  script is found by searching from both ends at once, and the two
+ *  halves on either side of it are compared in turn. Lines are numbered
+ *  by their content first, so that comparing two lines is comparing two
+ *  integers. Lines found in only one of the texts cannot be matched and
+ *  are set aside before the search, which keeps texts that have little
+ *  in common cheap to compare. A search that grows too costly settles for
+ *  a split at its furthest point, giving a correct if longer script.
+ *  @author Qindan Zhu
+ */
+class Diff {
+
+    /** Number of unchanged lines shown around a change.*/
+    static final int CONTEXT = 3;
+    /** Number of leading bytes looked at for a NUL to call data binary.*/
+    static final int BINARY_PREFIX = 8000;
+    /** Least cost a search may reach before it settles for a split.*/
+    static final int MIN_COST_LIMIT = 256;
+    /** Line opening the current side of a merge conflict.*/
+    static final String OURS_MARKER = "<<<<<<< HEAD\n";
+    /** Line between the two sides of a merge conflict.*/
+    static final String SIDES_MARKER = "=======\n";
+    /** Line closing the given side of a merge conflict.*/
+    static final String THEIRS_MARKER = ">>>>>>>\n";
+
+    /** The lines of the old text.*/
+    private final String[] _a;
+    /** The lines of the new text.*/
+    private final String[] _b;
+    /** Marks of the lines of the old text that are deleted.*/
+    private final boolean[] _deleted;
+    /** Marks of the lines of the new text that are inserted.*/
+    private final boolean[] _inserted;
+    /** Numbers of the old lines that may be matched.*/
+    private int[] _x;
+    /** Numbers of the new lines that may be matched.*/
+    private int[] _y;
+    /** Positions in the old text of the lines of _x.*/
+    private int[] _xindex;
+    /** Positions in the new text of the lines of _y.*/
+    private int[] _yindex;
+    /** Furthest reach of the forward search on each diagonal.*/
+    private int[] _forward;
+    /** Furthest reach of the backward search on each diagonal.*/
+    private int[] _backward;
+    /** Position of diagonal 0 in _forward and _backward.*/
+    private int _offset;
+    /** Cost from which a search settles for a split.*/
+    private int _limit;
+
+    /** The comparison of the lines A with the lines B.*/
+    Diff(String[] a, String[] b) {
+        _a = a;
+        _b = b;
+        _deleted = new boolean[a.length];
+        _inserted = new boolean[b.length];
+        HashMap<String, Integer> ids = new HashMap<>();
+        int[] ia = number(a, ids);
+        int[] ib = number(b, ids);
+        int[] ina = new int[ids.size()];
+        int[] inb = new int[ids.size()];
+        for (int id : ia) {
+            ina[id] += 1;
+        }
+        for (int id : ib) {
+            inb[id] += 1;
+        }
+        _xindex = keep(ia, inb, _deleted);
+        _yindex = keep(ib, ina, _inserted);
+        _x = new int[_xindex.length];
+        for (int i = 0; i < _x.length; i += 1) {
+            _x[i] = ia[_xindex[i]];
+        }
+        _y = new int[_yindex.length];
+        for (int j = 0; j < _y.length; j += 1) {
+            _y[j] = ib[_yindex[j]];
+        }
+        int size = _x.length + _y.length;
+        _offset = (size + 1) / 2 + 1;
+        _forward = new int[2 * _offset + 1];
+        _backward = new int[2 * _offset + 1];
+        _limit = Math.max(MIN_COST_LIMIT, (int) Math.sqrt(size));
+        compare(0, _x.length, 0, _y.length);
+        _x = _y = _xindex = _yindex = _forward = _backward = null;
+    }
+
+    /** Return the lines of CONTENT, decoded as UTF-8, each with its
+     *  newline if it has one.*/
+    static String[] lines(byte[] content) {
+        return lines(new String(content, StandardCharsets.UTF_8));
+    }
+
+    /** Return the lines of TEXT, each with its newline if it has one.*/
+    static String[] lines(String text) {
+        List<String> lines = new ArrayList<>();
+        int start = 0;
+        while (start < text.length()) {
+            int end = text.indexOf('\n', start);
+            end = end < 0 ? text.length() : end + 1;
+            lines.add(text.substring(start, end));
+            start = end;
+        }
+        return lines.toArray(new String[0]);
+    }
+
+    /** Return true if CONTENT looks binary: it has a NUL byte near its
+     *  start.*/
+    static boolean binary(byte[] content) {
+        int n = Math.min(content.length, BINARY_PREFIX);
+        for (int i = 0; i < n; i += 1) {
+            if (content[i] == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Append to OUT, one character per byte, the three-way merge of
+     *  the changes from the content BASE to the contents OURS and THEIRS,
+     *  and return the number of conflicts in it. A null content is a
+     *  missing file. If only one side is missing, or a content is
+     *  binary, all of both sides make one conflict; otherwise they are
+     *  merged line by line. Decoding one character per byte keeps every
+     *  byte of any encoding.*/
+    static int merge(byte[] base, byte[] ours, byte[] theirs,
+                     StringBuilder out) {
+        byte[] empty = new byte[0];
+        base = base == null ? empty : base;
+        if (ours != null && theirs != null && !binary(base)
+                && !binary(ours) && !binary(theirs)) {
+            return merge(lines(text(base)), lines(text(ours)),
+                         lines(text(theirs)), out);
+        }
+        out.append(OURS_MARKER)
+            .append(text(ours == null ? empty : ours))
+            .append(SIDES_MARKER)
+            .append(text(theirs == null ? empty : theirs))
+            .append(THEIRS_MARKER);
+        return 1;
+    }
+
+    /** Append to OUT the three-way merge of the changes from the lines
+     *  BASE to the lines OURS and to the lines THEIRS, and return the
+     *  number of conflicts in it. Changes of one side, or equal changes
+     *  of both, are taken as they are. Where the two sides change
+     *  overlapping or adjacent lines of BASE differently, both versions
+     *  of those lines only are written between conflict markers.*/
+    static int merge(String[] base, String[] ours, String[] theirs,
+                     StringBuilder out) {
+        List<int[]> mine = new Diff(base, ours).changes();
+        List<int[]> other = new Diff(base, theirs).changes();
+        int conflicts = 0;
+        int copied = 0;
+        int i = 0;
+        int j = 0;
+        while (i < mine.size() || j < other.size()) {
+            boolean first = j == other.size() || (i < mine.size()
+                    && mine.get(i)[0] <= other.get(j)[0]);
+            int lo = (first ? mine.get(i) : other.get(j))[0];
+            int hi = lo;
+            int i0 = i;
+            int j0 = j;
+            while (true) {
+                if (i < mine.size() && mine.get(i)[0] <= hi) {
+                    hi = Math.max(hi, mine.get(i)[1]);
+                    i += 1;
+                } else if (j < other.size() && other.get(j)[0] <= hi) {
+                    hi = Math.max(hi, other.get(j)[1]);
+                    j += 1;
+                } else {
+                    break;
+                }
+            }
+            append(out, base, copied, lo);
+            copied = hi;
+            String[] side = i > i0 ? ours : theirs;
+            int[] span = span(i > i0 ? mine.subList(i0, i)
+                              : other.subList(j0, j), lo, hi);
+            if (i > i0 && j > j0) {
+                int[] theirspan = span(other.subList(j0, j), lo, hi);
+                if (!Arrays.equals(ours, span[0], span[1], theirs,
+                                   theirspan[0], theirspan[1])) {
+                    conflicts += 1;
+                    out.append(OURS_MARKER);
+                    appendline(out, ours, span[0], span[1]);
+                    out.append(SIDES_MARKER);
+                    appendline(out, theirs, theirspan[0], theirspan[1]);
+                    out.append(THEIRS_MARKER);
+                    continue;
+                }
+            }
+            append(out, side, span[0], span[1]);
+        }
+        append(out, base, copied, base.length);
+        return conflicts;
+    }
+
+    /** Return CONTENT as text with one character per byte.*/
+    private static String text(byte[] content) {
+        return new String(content, StandardCharsets.ISO_8859_1);
+    }
+
+    /** Return the start and end of the lines that replace the lines LO
+     *  to HI of the old text, which hold exactly the changes CHANGES.*/
+    private static int[] span(List<int[]> changes, int lo, int hi) {
+        int[] head = changes.get(0);
+        int[] tail = changes.get(changes.size() - 1);
+        return new int[] {head[2] - (head[0] - lo), tail[3] + (hi - tail[1])};
+    }
+
+    /** Append the lines of LINES from START to END to OUT.*/
+    private static void append(StringBuilder out, String[] lines,
+                               int start, int end) {
+        for (int i = start; i < end; i += 1) {
+            out.append(lines[i]);
+        }
+    }
+
+    /** Append the lines of LINES from START to END to OUT, ending the
+     *  last with a newline if it has none.*/
+    private static void appendline(StringBuilder out, String[] lines,
+                                   int start, int end) {
+        append(out, lines, start, end);
+        if (end > start && !lines[end - 1].endsWith("\n")) {
+            out.append('\n');
+        }
+    }
+
+    /** Return the changed regions, in order, each as the start and end of
+     *  its lines in the old text, then in the new text.*/
+    List<int[]> changes() {
+        List<int[]> changes = new ArrayList<>();
+        int i = 0;
+        int j = 0;
+        while (i < _a.length || j < _b.length) {
+            if ((i < _a.length && _deleted[i])
+                    || (j < _b.length && _inserted[j])) {
+                int i0 = i;
+                int j0 = j;
+                while (i < _a.length && _deleted[i]) {
+                    i += 1;
+                }
+                while (j < _b.length && _inserted[j]) {
+                    j += 1;
+                }
+                changes.add(new int[] {i0, i, j0, j});
+            } else {
+                i += 1;
+                j += 1;
+            }
+        }
+        return changes;
+    }
+
+    /** Print the changes as a unified diff to OUT, with the old text
+     *  named ANAME and the new one BNAME, or /dev/null for a missing
+     *  one. Each hunk is printed as soon as it is complete.*/
+    void print(String aname, String bname, PrintWriter out) {
+        List<int[]> changes = changes();
+        if (changes.isEmpty()) {
+            return;
+        }
+        out.print("--- " + aname + "\n");
+        out.print("+++ " + bname + "\n");
+        int first = 0;
+        while (first < changes.size()) {
+            int last = first;
+            while (last + 1 < changes.size()
+                    && changes.get(last + 1)[0] - changes.get(last)[1]
+                    <= 2 * CONTEXT) {
+                last += 1;
+            }
+            hunk(changes.subList(first, last + 1), out);
+            first = last + 1;
+        }
+    }
+
+    /** Print the hunk holding CHANGES, with their context, to OUT.*/
+    private void hunk(List<int[]> changes, PrintWriter out) {
+        int[] head = changes.get(0);
+        int[] tail = changes.get(changes.size() - 1);
+        int astart = Math.max(0, head[0] - CONTEXT);
+        int bstart = head[2] - (head[0] - astart);
+        int aend = Math.min(_a.length, tail[1] + CONTEXT);
+        int bend = tail[3] + (aend - tail[1]);
+        out.print("@@ -" + range(astart, aend) + " +" + range(bstart, bend)
+                  + " @@\n");
+        int i = astart;
+        for (int[] change : changes) {
+            for (; i < change[0]; i += 1) {
+                line(' ', _a[i], out);
+            }
+            for (; i < change[1]; i += 1) {
+                line('-', _a[i], out);
+            }
+            for (int j = change[2]; j < change[3]; j += 1) {
+                line('+', _b[j], out);
+            }
+        }
+        for (; i < aend; i += 1) {
+            line(' ', _a[i], out);
+        }
+    }
+
+    /** Return the range of lines from START to END as a hunk header
+     *  gives it.*/
+    private static String range(int start, int end) {
+        int length = end - start;
+        if (length == 1) {
+            return Integer.toString(start + 1);
+        }
+        return (length == 0 ? start : start + 1) + "," + length;
+    }
+
+    /** Print LINE marked with MARK to OUT, noting a missing newline.*/
+    private static void line(char mark, String line, PrintWriter out) {
+        out.print(mark);
+        out.print(line);
+        if (!line.endsWith("\n")) {
+            out.print("\n\\ No newline at end of file\n");
+        }
+    }
+
+    /** Return the numbers of LINES, giving equal lines the same number
+     *  and numbering new lines in IDS.*/
+    private static int[] number(String[] lines, HashMap<String, Integer> ids) {
+        int[] numbers = new int[lines.length];
+        for (int i = 0; i < lines.length; i += 1) {
+            Integer id = ids.putIfAbsent(lines[i], ids.size());
+            numbers[i] = id == null ? ids.size() - 1 : id;
+        }
+        return numbers;
+    }
+
+    /** Return the positions of the lines numbered in IDS that occur in
+     *  the other text, whose counts of each number are OTHER, and mark
+     *  the others in CHANGED.*/
+    private static int[] keep(int[] ids, int[] other, boolean[] changed) {
+        int[] kept = new int[ids.length];
+        int n = 0;
+        for (int i = 0; i < ids.length; i += 1) {
+            if (other[ids[i]] == 0) {
+                changed[i] = true;
+            } else {
+                kept[n++] = i;
+            }
+        }
+        return Arrays.copyOf(kept, n);
+    }
+
+    /** Mark the changes between the lines of _x from ALO to AHI and the
+     *  lines of _y from BLO to BHI.*/
+    private void compare(int alo, int ahi, int blo, int bhi) {
+        while (alo < ahi && blo < bhi && _x[alo] == _y[blo]) {
+            alo += 1;
+            blo += 1;
+        }
+        while (alo < ahi && blo < bhi && _x[ahi - 1] == _y[bhi - 1]) {
+            ahi -= 1;
+            bhi -= 1;
+        }
+        if (alo == ahi || blo == bhi) {
+            for (int i = alo; i < ahi; i += 1) {
+                _deleted[_xindex[i]] = true;
+            }
+            for (int j = blo; j < bhi; j += 1) {
+                _inserted[_yindex[j]] = true;
+            }
+            return;
+        }
+        int[] split = split(alo, ahi, blo, bhi);
+        if (split == null) {
+            compare(ahi, ahi, blo, bhi);
+            compare(alo, ahi, bhi, bhi);
+            return;
+        }
+        compare(alo, split[0], blo, split[1]);
+        compare(split[0], ahi, split[1], bhi);
+    }
+
+    /** Return a point, as positions in _x and _y, on an edit script from
+     *  ALO, BLO to AHI, BHI, where both texts are not empty and differ in
+     *  their first and last lines, that is neither end. The point is on
+     *  an optimal script unless the search grows beyond _limit. Return
+     *  null if no such point is found.*/
+    private int[] split(int alo, int ahi, int blo, int bhi) {
+        int n = ahi - alo;
+        int m = bhi - blo;
+        int delta = n - m;
+        boolean odd = (delta & 1) != 0;
+        int off = _offset;
+        _forward[off + 1] = 0;
+        _backward[off + 1] = 0;
+        for (int d = 0; d <= (n + m + 1) / 2; d += 1) {
+            if (d > _limit) {
+                return furthest(alo, blo, n, m, d - 1);
+            }
+            for (int k = -d; k <= d; k += 2) {
+                int x = k == -d || (k != d && _forward[off + k - 1]
+                                    < _forward[off + k + 1])
+                    ? _forward[off + k + 1] : _forward[off + k - 1] + 1;
+                int y = x - k;
+                int sx = x;
+                int sy = y;
+                while (x < n && y < m && _x[alo + x] == _y[blo + y]) {
+                    x += 1;
+                    y += 1;
+                }
+                _forward[off + k] = x;
+                if (odd && Math.abs(delta - k) <= d - 1
+                        && x + _backward[off + delta - k] >= n) {
+                    return new int[] {alo + sx, blo + sy};
+                }
+            }
+            for (int k = -d; k <= d; k += 2) {
+                int x = k == -d || (k != d && _backward[off + k - 1]
+                                    < _backward[off + k + 1])
+                    ? _backward[off + k + 1] : _backward[off + k - 1] + 1;
+                int y = x - k;
+                int sx = x;
+                int sy = y;
+                while (x < n && y < m
+                       && _x[ahi - 1 - x] == _y[bhi - 1 - y]) {
+                    x += 1;
+                    y += 1;
+                }
+                _backward[off + k] = x;
+                if (!odd && Math.abs(delta - k) <= d
+                        && x + _forward[off + delta - k] >= n) {
+                    return new int[] {ahi - sx, bhi - sy};
+                }
+            }
+        }
+        return null;
+    }
+
+    /** Return the point inside the texts of length N and M, starting at
+     *  ALO and BLO, furthest along the diagonals the forward search has
+     *  reached at cost D, or null if it is still at the start.*/
+    private int[] furthest(int alo, int blo, int n, int m, int d) {
+        int best = -1;
+        int[] point = null;
+        for (int k = -d; k <= d; k += 2) {
+            int x = Math.min(_forward[_offset + k], n);
+            int y = x - k;
+            if (y >= 0 && y <= m && x + y > best && x + y < n + m) {
+                best = x + y;
+                point = new int[] {alo + x, blo + y};
+            }
+        }
+        return best > 0 ? point : null;
+    }
+}
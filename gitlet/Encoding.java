@@ -0,0 +1,167 @@
+package gitlet;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/** Helpers for the binary encodings of commits and repository state.
+ *  Every encoded record starts with a four-byte magic number naming its
+ *  kind and a one-byte format version. Strings are written as their
+ *  UTF-8 length followed by their bytes, hashes as their 20 raw bytes,
+ *  and lists and maps as their size followed by their elements.
+ *  @author Qindan Zhu
+ */
+class Encoding {
+
+    /** Length of a raw hash.*/
+    static final int HASH_LENGTH = 20;
+    /** Mask selecting the seven bits of a length kept in one byte.*/
+    private static final int LOW_BITS = 0x7f;
+    /** Bit marking that more bytes of a length follow.*/
+    private static final int MORE = 0x80;
+
+    /** Write the header of a record of kind MAGIC, format VERSION to
+     *  OUT.*/
+    static void writeheader(DataOutputStream out, int magic, int version)
+            throws IOException {
+        out.writeInt(magic);
+        out.writeByte(version);
+    }
+
+    /** Read the header of a record of kind MAGIC from IN, and return its
+     *  format version, which must be at most VERSION.*/
+    static int readheader(DataInputStream in, int magic, int version)
+            throws IOException {
+        if (in.readInt() != magic) {
+            throw new IOException("unrecognized record");
+        }
+        int found = in.readUnsignedByte();
+        if (found > version) {
+            throw new IOException("record format " + found
+                    + " is newer than this gitlet");
+        }
+        return found;
+    }
+
+    /** Write STR to OUT.*/
+    static void writestring(DataOutputStream out, String str)
+            throws IOException {
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        writelength(out, bytes.length);
+        out.write(bytes);
+    }
+
+    /** Read a string from IN.*/
+    static String readstring(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[readlength(in)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** Write the hexadecimal HASH to OUT as raw bytes.*/
+    static void writehash(DataOutputStream out, String hash)
+            throws IOException {
+        out.write(Utils.fromHex(hash));
+    }
+
+    /** Read a raw hash from IN and return it in hexadecimal.*/
+    static String readhash(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[HASH_LENGTH];
+        in.readFully(bytes);
+        return Utils.toHex(bytes);
+    }
+
+    /** Write the strings in LIST to OUT.*/
+    static void writestrings(DataOutputStream out, List<String> list)
+            throws IOException {
+        writelength(out, list.size());
+        for (String str : list) {
+            writestring(out, str);
+        }
+    }
+
+    /** Read a list of strings from IN.*/
+    static ArrayList<String> readstrings(DataInputStream in)
+            throws IOException {
+        int size = readlength(in);
+        ArrayList<String> list = new ArrayList<>(size);
+        for (int i = 0; i < size; i += 1) {
+            list.add(readstring(in));
+        }
+        return list;
+    }
+
+    /** Write the hexadecimal hashes in LIST to OUT.*/
+    static void writehashes(DataOutputStream out, List<String> list)
+            throws IOException {
+        writelength(out, list.size());
+        for (String hash : list) {
+            writehash(out, hash);
+        }
+    }
+
+    /** Read a list of hashes from IN.*/
+    static ArrayList<String> readhashes(DataInputStream in)
+            throws IOException {
+        int size = readlength(in);
+        ArrayList<String> list = new ArrayList<>(size);
+        for (int i = 0; i < size; i += 1) {
+            list.add(readhash(in));
+        }
+        return list;
+    }
+
+    /** Write MAP, from names to hexadecimal hashes, to OUT in name
+     *  order.*/
+    static void writehashmap(DataOutputStream out, Map<String, String> map)
+            throws IOException {
+        writelength(out, map.size());
+        for (Map.Entry<String, String> entry
+                 : new TreeMap<>(map).entrySet()) {
+            writestring(out, entry.getKey());
+            writehash(out, entry.getValue());
+        }
+    }
+
+    /** Read a map from names to hashes from IN.*/
+    static HashMap<String, String> readhashmap(DataInputStream in)
+            throws IOException {
+        int size = readlength(in);
+        HashMap<String, String> map = new HashMap<>(size * 2);
+        for (int i = 0; i < size; i += 1) {
+            String name = readstring(in);
+            map.put(name, readhash(in));
+        }
+        return map;
+    }
+
+    /** Write the non-negative LENGTH to OUT, seven bits per byte, low
+     *  bits first.*/
+    static void writelength(DataOutputStream out, int length)
+            throws IOException {
+        while ((length & ~LOW_BITS) != 0) {
+            out.writeByte((length & LOW_BITS) | MORE);
+            length >>>= 7;
+        }
+        out.writeByte(length);
+    }
+
+    /** Read a length written by writelength from IN.*/
+    static int readlength(DataInputStream in) throws IOException {
+        int length = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = in.readUnsignedByte();
+            length |= (b & LOW_BITS) << shift;
+            shift += 7;
+        } while ((b & MORE) != 0);
+        return length;
+    }
+}
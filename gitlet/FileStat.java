@@ -0,0 +1,131 @@
+package gitlet;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/** The stat data of a working file that the index records: its size,
+ *  modification time and inode. A file whose stat data is unchanged
+ *  since it was hashed is assumed to still have the same content,
+ *  unless it is racily clean: modified so close to the writing of the
+ *  index that a later change could have left the same modification
+ *  time.
+ *  @author Qindan Zhu
+ */
+class FileStat {
+
+    /** Attributes read where the file system supports them.*/
+    private static final String UNIX_ATTRIBUTES =
+        "unix:size,lastModifiedTime,ino,isRegularFile";
+
+    /** Whether the unix attribute view is available.*/
+    private static boolean _unix = true;
+
+    /** Size of the file.*/
+    private final long _size;
+    /** Modification time of the file in nanoseconds since the epoch.*/
+    private final long _mtime;
+    /** Inode number of the file, or 0 if unknown.*/
+    private final long _inode;
+
+    /** Stat data of SIZE, MTIME and INODE.*/
+    FileStat(long size, long mtime, long inode) {
+        _size = size;
+        _mtime = mtime;
+        _inode = inode;
+    }
+
+    /** Return the stat data of FILE, or null if it is not a plain file.*/
+    static FileStat of(File file) {
+        Path path = file.toPath();
+        try {
+            if (_unix) {
+                try {
+                    Map<String, Object> attrs = Files.readAttributes(path,
+                            UNIX_ATTRIBUTES, LinkOption.NOFOLLOW_LINKS);
+                    if (!(Boolean) attrs.get("isRegularFile")) {
+                        return null;
+                    }
+                    return new FileStat((Long) attrs.get("size"),
+                            nanos((FileTime) attrs.get("lastModifiedTime")),
+                            (Long) attrs.get("ino"));
+                } catch (UnsupportedOperationException excp) {
+                    _unix = false;
+                }
+            }
+            BasicFileAttributes attrs = Files.readAttributes(path,
+                    BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            if (!attrs.isRegularFile()) {
+                return null;
+            }
+            return new FileStat(attrs.size(),
+                    nanos(attrs.lastModifiedTime()), 0);
+        } catch (IOException excp) {
+            return null;
+        }
+    }
+
+    /** Return the modification time of FILE in nanoseconds, or 0 if it
+     *  does not exist.*/
+    static long mtime(File file) {
+        try {
+            return nanos(Files.getLastModifiedTime(file.toPath()));
+        } catch (IOException excp) {
+            return 0;
+        }
+    }
+
+    /** Return true if this stat data was taken at or after INDEXTIME, the
+     *  modification time of the index it was read from, so that it cannot
+     *  be trusted to show that the file is unchanged.*/
+    boolean racy(long indextime) {
+        return _mtime >= indextime;
+    }
+
+    /** Return the size of the file.*/
+    long size() {
+        return _size;
+    }
+
+    /** Write this stat data to OUT.*/
+    void write(DataOutputStream out) throws IOException {
+        out.writeLong(_size);
+        out.writeLong(_mtime);
+        out.writeLong(_inode);
+    }
+
+    /** Read stat data from IN.*/
+    static FileStat read(DataInputStream in) throws IOException {
+        long size = in.readLong();
+        long mtime = in.readLong();
+        return new FileStat(size, mtime, in.readLong());
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof FileStat)) {
+            return false;
+        }
+        FileStat other = (FileStat) obj;
+        return _size == other._size && _mtime == other._mtime
+            && _inode == other._inode;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(_size) * 31 + Long.hashCode(_mtime);
+    }
+
+    /** Return TIME in nanoseconds since the epoch.*/
+    private static long nanos(FileTime time) {
+        return time.to(TimeUnit.NANOSECONDS);
+    }
+}
@@ -7,14 +7,31 @@ package gitlet;
 class GitletException extends RuntimeException {
 
 
+    /** The exit status of the command that failed.*/
+    private final int _status;
+
     /** A GitletException with no message. */
     GitletException() {
         super();
+        _status = 0;
     }
 
     /** A GitletException MSG as its message. */
     GitletException(String msg) {
+        this(msg, 0);
+    }
+
+    /** A GitletException with MSG as its message, after which the
+     *  command exits with STATUS.*/
+    GitletException(String msg, int status) {
         super(msg);
+        _status = status;
+    }
+
+    /** Return the exit status of the command that failed, which is 0
+     *  unless the failure left something to look at.*/
+    int status() {
+        return _status;
     }
 
 }
@@ -1,8 +1,17 @@
 package gitlet;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 /** Driver class for Gitlet, the tiny stupid version-control system.
  *  @author Qindan Zhu
  */
@@ -11,41 +20,222 @@ public class Main {
     static final File CURR_FOLDER = new File(".");
     /** Main directory.*/
     static final File MAIN_FOLDER = Utils.join(CURR_FOLDER, ".gitlet");
-    /** Record for resuming repo.*/
-    static final File RECORD = Utils.join(MAIN_FOLDER, "gitlet");
+    /** Record of the current branch, for resuming repo.*/
+    static final File RECORD = Utils.join(MAIN_FOLDER, "HEAD");
+    /** The lock file, held by a process while it runs a command.*/
+    static final File LOCK_FILE = Utils.join(MAIN_FOLDER, "lock");
+    /** Batch line saving the repository.*/
+    static final String CHECKPOINT = "checkpoint";
     /** Usage: java gitlet.Main ARGS, where ARGS contains
      *  <COMMAND> <OPERAND> .... */
     public static void main(String... args) throws IOException {
+        if (args.length > 0 && !args[0].equals("batch")) {
+            int status = Daemon.forward(args);
+            if (status != Daemon.NOT_RUNNING) {
+                System.exit(status);
+            }
+        }
+        int status = 0;
+        if (args.length > 0 && args[0].equals("daemon")) {
+            Daemon.command(args);
+        } else if (args.length > 0 && args[0].equals("batch")) {
+            status = batch(args);
+        } else {
+            status = run(args);
+        }
+        System.exit(status);
+    }
+
+    /** Run the command in ARGS on the repository in the working
+     *  directory, holding its lock, and save the repository unless the
+     *  command fails, in which case its error message is printed. Return
+     *  the exit status, which is that of the error if the command
+     *  failed.*/
+    static int run(String... args) throws IOException {
+        int status = 0;
         if (args.length < 1) {
             System.out.println("Please enter a command.");
         } else {
             if (!Arrays.asList(_validcommands).contains(args[0])) {
                 System.out.println(" No command with that name exists.");
             } else {
-                if (!MAIN_FOLDER.exists()) {
-                    _repo = new Repo();
+                FileChannel lock = lock();
+                try {
+                    if (!MAIN_FOLDER.exists()) {
+                        _repo = new Repo();
+                    } else {
+                        _repo = Repo.fromFile();
+                    }
+                    _repo.process(args);
+                    saverepo();
+                } catch (GitletException excp) {
+                    System.out.println(excp.getMessage());
+                    status = excp.status();
+                } finally {
+                    unlock(lock);
+                }
+                if (System.getenv(ObjectCache.STATS_VARIABLE) != null) {
+                    System.err.println(ObjectCache.shared());
+                }
+            }
+        }
+        return status;
+    }
+
+    /** Run the commands in the file named in ARGS, or in the standard
+     *  input if none or "-" is named, one per line, on one repository
+     *  that is saved at each checkpoint line and at the end. Words are
+     *  separated by blanks, and double quotes group words into one.
+     *  Blank lines and lines starting with # are skipped. A failing
+     *  command prints its line number and error, and its changes to the
+     *  repository state are dropped, as if it had run alone; the
+     *  commands after it still run. A batch starting outside a
+     *  repository takes the lock once a line has created one. Return the
+     *  exit status, the largest of those of the failed lines.*/
+    static int batch(String[] args) throws IOException {
+        if (args.length > 2) {
+            System.out.println("Incorrect operands.");
+            return 0;
+        }
+        BufferedReader reader;
+        if (args.length == 1 || args[1].equals("-")) {
+            reader = new BufferedReader(new InputStreamReader(System.in,
+                    StandardCharsets.UTF_8));
+        } else if (new File(args[1]).isFile()) {
+            reader = Files.newBufferedReader(Paths.get(args[1]));
+        } else {
+            System.out.println("File does not exist.");
+            return 0;
+        }
+        int status = 0;
+        FileChannel lock = lock();
+        try (reader) {
+            if (!MAIN_FOLDER.exists()) {
+                _repo = new Repo();
+            } else {
+                _repo = Repo.fromFile();
+            }
+            int number = 0;
+            for (String line = reader.readLine(); line != null;
+                 line = reader.readLine()) {
+                number += 1;
+                Repo snapshot = _repo.snapshot();
+                try {
+                    String[] words = words(line);
+                    if (words.length == 0 || words[0].startsWith("#")) {
+                        continue;
+                    } else if (words[0].equals(CHECKPOINT)) {
+                        saverepo();
+                    } else if (!Arrays.asList(_validcommands)
+                               .contains(words[0])
+                               || Arrays.asList(_processcommands)
+                               .contains(words[0])) {
+                        throw Utils.error("No command with that name "
+                                + "exists.");
+                    } else {
+                        _repo.process(words);
+                    }
+                } catch (GitletException excp) {
+                    _repo.restore(snapshot);
+                    System.out.printf("line %d: %s%n", number,
+                            excp.getMessage());
+                    status = Math.max(status, excp.status());
+                }
+                if (lock == null) {
+                    lock = lock();
+                }
+            }
+            saverepo();
+        } catch (GitletException excp) {
+            System.out.println(excp.getMessage());
+            status = Math.max(status, excp.status());
+        } finally {
+            unlock(lock);
+        }
+        if (System.getenv(ObjectCache.STATS_VARIABLE) != null) {
+            System.err.println(ObjectCache.shared());
+        }
+        return status;
+    }
+
+    /** Return the words of LINE, separated by blanks. A double-quoted
+     *  string is one word, in which a backslash quotes the character
+     *  after it.*/
+    static String[] words(String line) {
+        List<String> words = new ArrayList<>();
+        StringBuilder word = null;
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i += 1) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"') {
+                    quoted = false;
+                } else if (c == '\\' && i + 1 < line.length()) {
+                    i += 1;
+                    word.append(line.charAt(i));
+                } else {
+                    word.append(c);
+                }
+            } else if (Character.isWhitespace(c)) {
+                if (word != null) {
+                    words.add(word.toString());
+                    word = null;
+                }
+            } else {
+                if (word == null) {
+                    word = new StringBuilder();
+                }
+                if (c == '"') {
+                    quoted = true;
                 } else {
-                    _repo = Repo.fromFile();
+                    word.append(c);
                 }
-                _repo.process(args);
-                saverepo();
             }
         }
-        System.exit(0);
+        if (quoted) {
+            throw Utils.error("Unterminated quote.");
+        }
+        if (word != null) {
+            words.add(word.toString());
+        }
+        return words.toArray(new String[0]);
+    }
+
+    /** Return a channel holding the lock of the repository, waiting for
+     *  any other process holding it, or null if there is no repository.*/
+    private static FileChannel lock() throws IOException {
+        if (!MAIN_FOLDER.isDirectory()) {
+            return null;
+        }
+        FileChannel channel = FileChannel.open(LOCK_FILE.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        channel.lock();
+        return channel;
+    }
+
+    /** Release LOCK, as returned by lock().*/
+    private static void unlock(FileChannel lock) throws IOException {
+        if (lock != null) {
+            lock.close();
+        }
     }
 
     /** Save repo by overwriting record.*/
     private static void saverepo() {
-        Utils.writeObject(RECORD, _repo);
+        _repo.save();
     }
 
     /** Repo.*/
     private static Repo _repo;
 
+    /** Commands that run a process of their own, not allowed in a batch.*/
+    private static String[] _processcommands = {"batch", "daemon"};
+
     /** Valid command.*/
     private static String[] _validcommands = {"init",
         "add", "commit", "rm", "log", "global-log",
         "find", "status", "checkout", "branch",
-        "rm-branch", "reset", "merge"};
+        "rm-branch", "reset", "merge", "config",
+        "repack", "merge-base", "diff", "daemon", "batch"};
 
 }
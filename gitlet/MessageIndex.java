@@ -0,0 +1,321 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/** A trigram index of commit messages, used by find to read only the
+ *  commits whose messages can match. For every three consecutive bytes
+ *  of the UTF-8 messages it lists the commits, by their position in the
+ *  commit list, whose message contains them. A message containing a
+ *  string contains all of its trigrams, so intersecting their lists
+ *  gives the candidates for a search.
+ *
+ *  The file holds the number of commits it covers, which are the first
+ *  ones of the commit list, then a directory of the trigrams in order
+ *  with the offset and length of their lists, then the lists, each
+ *  written as increasing positions coded as differences. Commits made
+ *  since the index was written are searched directly; once there are
+ *  more than MAX_UNINDEXED of them their trigrams are merged into the
+ *  index.
+ *  @author Qindan Zhu
+ */
+class MessageIndex {
+
+    /** The message index file.*/
+    static final File INDEX_FILE =
+        Utils.join(Main.MAIN_FOLDER, "message-index");
+    /** Magic number of the message index.*/
+    static final int MAGIC = 0x474d4958;
+    /** Format version of the message index.*/
+    static final int VERSION = 1;
+    /** Length of the header: magic, version, commits and trigrams.*/
+    static final int HEADER_LENGTH = 13;
+    /** Length of a directory entry: trigram, offset and length.*/
+    static final int ENTRY_LENGTH = 12;
+    /** Most commits left out of the index before it is updated.*/
+    static final int MAX_UNINDEXED = 256;
+    /** Length of a trigram.*/
+    static final int GRAM = 3;
+    /** Mask selecting the low seven bits of a byte.*/
+    private static final int LOW_BITS = 0x7f;
+    /** Characters of a regular expression that are not literals.*/
+    private static final String SPECIAL = ".^$|()[]{}?*+\\";
+
+    /** The index file, or null if there is none.*/
+    private final ByteBuffer _index;
+    /** Number of commits in the index.*/
+    private final int _count;
+    /** Number of trigrams in the index.*/
+    private final int _trigrams;
+
+    /** The index held in INDEX, or the empty index if INDEX is null.*/
+    private MessageIndex(ByteBuffer index) {
+        _index = index;
+        _count = index == null ? 0 : index.getInt(5);
+        _trigrams = index == null ? 0 : index.getInt(9);
+    }
+
+    /** Return the index read from its file, mapped into memory.*/
+    static MessageIndex read() {
+        if (!INDEX_FILE.isFile()) {
+            return new MessageIndex(null);
+        }
+        try (RandomAccessFile in = new RandomAccessFile(INDEX_FILE, "r");
+             FileChannel channel = in.getChannel()) {
+            ByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY,
+                    0, channel.size());
+            if (index.getInt(0) != MAGIC || index.get(4) > VERSION) {
+                throw Utils.error("Corrupt message index.");
+            }
+            return new MessageIndex(index);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Return the number of commits in the index.*/
+    int count() {
+        return _count;
+    }
+
+    /** Return the positions, in increasing order, of the indexed commits
+     *  whose messages contain all of TRIGRAMS, or null if TRIGRAMS is
+     *  empty and so does not narrow the search.*/
+    int[] candidates(Set<Integer> trigrams) {
+        if (trigrams.isEmpty()) {
+            return null;
+        }
+        int[] result = null;
+        for (int trigram : trigrams) {
+            int[] list = postings(trigram);
+            result = result == null ? list : intersect(result, list);
+            if (result.length == 0) {
+                break;
+            }
+        }
+        return result;
+    }
+
+    /** Write the index of COMMITS, the hashes of all commits in the order
+     *  they were made, reading only the messages of the commits that OLD
+     *  does not cover.*/
+    static void update(MessageIndex old, List<String> commits) {
+        TreeMap<Integer, int[]> lists = new TreeMap<>();
+        for (int k = 0; k < old._trigrams; k += 1) {
+            int trigram = old._index.getInt(HEADER_LENGTH
+                    + k * ENTRY_LENGTH);
+            lists.put(trigram, old.postings(trigram));
+        }
+        TreeMap<Integer, List<Integer>> added = new TreeMap<>();
+        for (int i = old._count; i < commits.size(); i += 1) {
+            String message = Commit.fromFile(commits.get(i)).message();
+            for (int trigram : trigrams(message)) {
+                added.computeIfAbsent(trigram,
+                    t -> new ArrayList<>()).add(i);
+            }
+        }
+        for (Map.Entry<Integer, List<Integer>> entry : added.entrySet()) {
+            int[] list = lists.getOrDefault(entry.getKey(), new int[0]);
+            int[] grown = Arrays.copyOf(list,
+                    list.length + entry.getValue().size());
+            for (int j = 0; j < entry.getValue().size(); j += 1) {
+                grown[list.length + j] = entry.getValue().get(j);
+            }
+            lists.put(entry.getKey(), grown);
+        }
+        write(lists, commits.size());
+    }
+
+    /** Return the trigrams of the UTF-8 bytes of TEXT.*/
+    static Set<Integer> trigrams(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        Set<Integer> result = new HashSet<>();
+        for (int i = 0; i + GRAM <= bytes.length; i += 1) {
+            result.add((bytes[i] & 0xff) << 16 | (bytes[i + 1] & 0xff) << 8
+                       | (bytes[i + 2] & 0xff));
+        }
+        return result;
+    }
+
+    /** Return trigrams that every message matched by the regular
+     *  expression REGEX contains: those of the runs of literal characters
+     *  it requires. Expressions with alternatives, inline flags or quoted
+     *  sections give no trigrams.*/
+    static Set<Integer> regextrigrams(String regex) {
+        Set<Integer> result = new HashSet<>();
+        if (regex.contains("|") || regex.contains("(?")
+                || regex.contains("\\Q")) {
+            return result;
+        }
+        StringBuilder run = new StringBuilder();
+        int i = 0;
+        while (i < regex.length()) {
+            char c = regex.charAt(i);
+            if (c == '[' || c == '(' || c == '{') {
+                i = skipgroup(regex, i);
+            } else if (c == '\\' && i + 1 < regex.length()
+                       && !Character.isLetterOrDigit(regex.charAt(i + 1))) {
+                i = literal(regex, i + 1, run, result);
+                continue;
+            } else if (SPECIAL.indexOf(c) < 0) {
+                i = literal(regex, i, run, result);
+                continue;
+            } else {
+                i += c == '\\' ? 2 : 1;
+            }
+            result.addAll(trigrams(run.toString()));
+            run.setLength(0);
+        }
+        result.addAll(trigrams(run.toString()));
+        return result;
+    }
+
+    /** Add the literal character of REGEX at I to RUN unless a quantifier
+     *  after it makes it optional, ending RUN, whose trigrams go to
+     *  RESULT, if it may be repeated or left out. Return the position
+     *  after the literal.*/
+    private static int literal(String regex, int i, StringBuilder run,
+                               Set<Integer> result) {
+        char c = regex.charAt(i);
+        char next = i + 1 < regex.length() ? regex.charAt(i + 1) : 0;
+        if (next == '?' || next == '*' || next == '{') {
+            result.addAll(trigrams(run.toString()));
+            run.setLength(0);
+        } else if (next == '+') {
+            run.append(c);
+            result.addAll(trigrams(run.toString()));
+            run.setLength(0);
+        } else {
+            run.append(c);
+        }
+        return i + 1;
+    }
+
+    /** Return the position after the bracket, parenthesis or brace group
+     *  of REGEX opening at START.*/
+    private static int skipgroup(String regex, int start) {
+        int depth = 0;
+        for (int i = start; i < regex.length(); i += 1) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                i += 1;
+            } else if (c == '[' || c == '(' || c == '{') {
+                depth += 1;
+            } else if (c == ']' || c == ')' || c == '}') {
+                depth -= 1;
+                if (depth == 0) {
+                    return i + 1;
+                }
+            }
+        }
+        return regex.length();
+    }
+
+    /** Return the increasing positions of the commits whose messages
+     *  contain TRIGRAM.*/
+    private int[] postings(int trigram) {
+        int lo = 0;
+        int hi = _trigrams;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            int found = _index.getInt(HEADER_LENGTH + mid * ENTRY_LENGTH);
+            if (found < trigram) {
+                lo = mid + 1;
+            } else if (found > trigram) {
+                hi = mid;
+            } else {
+                int entry = HEADER_LENGTH + mid * ENTRY_LENGTH;
+                return decode(_index.getInt(entry + 4),
+                        _index.getInt(entry + 8));
+            }
+        }
+        return new int[0];
+    }
+
+    /** Return the LENGTH positions coded as differences at OFFSET.*/
+    private int[] decode(int offset, int length) {
+        int[] list = new int[length];
+        int pos = offset;
+        int value = 0;
+        for (int k = 0; k < length; k += 1) {
+            int delta = 0;
+            int shift = 0;
+            int b;
+            do {
+                b = _index.get(pos) & 0xff;
+                pos += 1;
+                delta |= (b & LOW_BITS) << shift;
+                shift += 7;
+            } while ((b & ~LOW_BITS) != 0);
+            value += delta;
+            list[k] = value;
+        }
+        return list;
+    }
+
+    /** Return the values in both of the increasing lists A and B.*/
+    private static int[] intersect(int[] a, int[] b) {
+        int[] result = new int[Math.min(a.length, b.length)];
+        int n = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i += 1;
+            } else if (a[i] > b[j]) {
+                j += 1;
+            } else {
+                result[n++] = a[i];
+                i += 1;
+                j += 1;
+            }
+        }
+        return Arrays.copyOf(result, n);
+    }
+
+    /** Write the index file with the position LISTS of each trigram,
+     *  covering the first COUNT commits.*/
+    private static void write(TreeMap<Integer, int[]> lists, int count) {
+        ByteArrayOutputStream postings = new ByteArrayOutputStream();
+        DataOutputStream body = new DataOutputStream(postings);
+        File temp = Utils.join(Main.MAIN_FOLDER, "message-index.tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp)))) {
+            Encoding.writeheader(out, MAGIC, VERSION);
+            out.writeInt(count);
+            out.writeInt(lists.size());
+            int base = HEADER_LENGTH + lists.size() * ENTRY_LENGTH;
+            for (Map.Entry<Integer, int[]> entry : lists.entrySet()) {
+                out.writeInt(entry.getKey());
+                out.writeInt(base + body.size());
+                out.writeInt(entry.getValue().length);
+                int previous = 0;
+                for (int position : entry.getValue()) {
+                    Encoding.writelength(body, position - previous);
+                    previous = position;
+                }
+            }
+            postings.writeTo(out);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        if (!temp.renameTo(INDEX_FILE)) {
+            throw Utils.error("Cannot write message index.");
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package gitlet;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/** A cache of the contents of recently read objects, bounded by their
+ *  total size. Entries are kept in order of use and the least recently
+ *  used are evicted first. Objects larger than a quarter of the cache
+ *  are not kept. The cache counts its hits and misses, which are printed
+ *  when a command ends if GITLET_CACHE_STATS is set in the environment.
+ *  Cached contents are shared and must not be modified.
+ *  @author Qindan Zhu
+ */
+class ObjectCache {
+
+    /** Config key of the size of the cache in bytes.*/
+    static final String SIZE_KEY = "core.cachesize";
+    /** Default size of the cache in bytes.*/
+    static final int DEFAULT_SIZE = 32 << 20;
+    /** Environment variable asking for the counters to be printed.*/
+    static final String STATS_VARIABLE = "GITLET_CACHE_STATS";
+    /** Share of the cache the largest cached object may take.*/
+    private static final int MAX_SHARE = 4;
+
+    /** The cache of this process, or null if not yet made.*/
+    private static ObjectCache _cache;
+
+    /** Contents keyed by hash, least recently used first.*/
+    private final LinkedHashMap<String, byte[]> _entries =
+        new LinkedHashMap<>(16, 0.75f, true);
+    /** Most bytes held.*/
+    private final long _capacity;
+    /** Bytes held.*/
+    private long _size;
+    /** Number of lookups that found their object.*/
+    private long _hits;
+    /** Number of lookups that did not.*/
+    private long _misses;
+
+    /** An empty cache holding at most CAPACITY bytes.*/
+    ObjectCache(long capacity) {
+        _capacity = capacity;
+    }
+
+    /** Return the cache of this process, sized by core.cachesize.*/
+    static synchronized ObjectCache shared() {
+        if (_cache == null) {
+            _cache = new ObjectCache(Config.getint(SIZE_KEY, DEFAULT_SIZE));
+        }
+        return _cache;
+    }
+
+    /** Return the contents of the object with HASH, or null if they are
+     *  not cached.*/
+    synchronized byte[] get(String hash) {
+        byte[] content = _entries.get(hash);
+        if (content == null) {
+            _misses += 1;
+        } else {
+            _hits += 1;
+        }
+        return content;
+    }
+
+    /** Cache CONTENT as the contents of the object with HASH, evicting
+     *  the least recently used objects to make room.*/
+    synchronized void put(String hash, byte[] content) {
+        if (content.length > _capacity / MAX_SHARE) {
+            return;
+        }
+        byte[] old = _entries.put(hash, content);
+        _size += content.length - (old == null ? 0 : old.length);
+        Iterator<byte[]> oldest = _entries.values().iterator();
+        while (_size > _capacity && oldest.hasNext()) {
+            _size -= oldest.next().length;
+            oldest.remove();
+        }
+    }
+
+    /** Forget all cached objects.*/
+    synchronized void clear() {
+        _entries.clear();
+        _size = 0;
+    }
+
+    /** Return the number of lookups that found their object.*/
+    synchronized long hits() {
+        return _hits;
+    }
+
+    /** Return the number of lookups that did not find their object.*/
+    synchronized long misses() {
+        return _misses;
+    }
+
+    /** Return the number of bytes held.*/
+    synchronized long size() {
+        return _size;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("object cache: %d hits, %d misses, "
+                + "%d objects, %d of %d bytes", _hits, _misses,
+                _entries.size(), _size, _capacity);
+    }
+}
@@ -0,0 +1,318 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/** Content-addressed store for file contents and commits. Every blob is
+ *  written once, under the SHA-1 hash of its bytes, so unchanged files are
+ *  shared by all the commits that track them. Objects are compressed with
+ *  the configured codec and are read and written as streams. New objects
+ *  are written loose, one file each, until repack folds them into a
+ *  {@link Pack}.
+ *  @author Qindan Zhu
+ */
+class ObjectStore {
+
+    /** The object folder.*/
+    static final File OBJECT_FOLDER = Utils.join(Main.MAIN_FOLDER, "objects");
+    /** Length of the directory prefix taken from a hash.*/
+    static final int FANOUT_LENGTH = 2;
+    /** Type tag of a blob object.*/
+    static final int BLOB = 1;
+    /** Type tag of a commit object.*/
+    static final int COMMIT = 2;
+    /** Type tag of a manifest listing the chunks of a blob.*/
+    static final int MANIFEST = 3;
+    /** Type tag of a tree listing the entries of a directory.*/
+    static final int TREE = 4;
+    /** Length of the type and codec ids in front of a loose object.*/
+    static final int HEADER_LENGTH = 2;
+
+    /** Return the hash identifying CONTENT in the store.*/
+    static String hash(byte[] content) {
+        return Utils.sha1("blob", content);
+    }
+
+    /** Return the hash identifying the content of FILE, which is read as
+     *  a stream.*/
+    static String hash(File file) {
+        try (InputStream in = new FileInputStream(file)) {
+            MessageDigest md = Utils.newSha1();
+            md.update("blob".getBytes(StandardCharsets.UTF_8));
+            byte[] buffer = new byte[Codec.BUFFER_SIZE];
+            for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                md.update(buffer, 0, n);
+            }
+            return Utils.toHex(md.digest());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Store CONTENT unless it is already present, and return its hash.*/
+    static String write(byte[] content) {
+        return write(new ByteArrayInputStream(content));
+    }
+
+    /** Store everything read from IN unless it is already present, and
+     *  return its hash. The content is hashed and compressed in one pass
+     *  without being held in memory.*/
+    static String write(InputStream in) {
+        OBJECT_FOLDER.mkdirs();
+        File temp = null;
+        try {
+            temp = File.createTempFile("object", ".tmp", OBJECT_FOLDER);
+            MessageDigest md = Utils.newSha1();
+            md.update("blob".getBytes(StandardCharsets.UTF_8));
+            try (OutputStream out = new BufferedOutputStream(
+                    new FileOutputStream(temp), Codec.BUFFER_SIZE)) {
+                out.write(BLOB);
+                OutputStream body = Codec.wrap(out);
+                byte[] buffer = new byte[Codec.BUFFER_SIZE];
+                for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                    md.update(buffer, 0, n);
+                    body.write(buffer, 0, n);
+                }
+                body.close();
+            }
+            String hash = Utils.toHex(md.digest());
+            if (contains(hash)) {
+                temp.delete();
+                return hash;
+            }
+            File file = path(hash);
+            file.getParentFile().mkdirs();
+            if (!temp.renameTo(file)) {
+                temp.delete();
+            }
+            return hash;
+        } catch (IOException excp) {
+            if (temp != null) {
+                temp.delete();
+            }
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Store DATA as an object of TYPE under the given HASH unless it is
+     *  already present.*/
+    static void write(String hash, int type, byte[] data) {
+        if (contains(hash)) {
+            return;
+        }
+        File file = path(hash);
+        file.getParentFile().mkdirs();
+        File temp = null;
+        try {
+            temp = File.createTempFile("object", ".tmp", OBJECT_FOLDER);
+            try (OutputStream out = new BufferedOutputStream(
+                    new FileOutputStream(temp), Codec.BUFFER_SIZE)) {
+                out.write(type);
+                OutputStream body = Codec.wrap(out);
+                body.write(data);
+                body.close();
+            }
+            if (!temp.renameTo(file)) {
+                temp.delete();
+            }
+        } catch (IOException excp) {
+            if (temp != null) {
+                temp.delete();
+            }
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Return a stream of the contents stored under HASH. Packed objects
+     *  are found through the pack indices before loose ones are tried.*/
+    static InputStream open(String hash) {
+        byte[] id = Utils.fromHex(hash);
+        for (Pack pack : Pack.all()) {
+            int offset = pack.find(id);
+            if (offset >= 0) {
+                return pack.open(offset);
+            }
+        }
+        File file = path(hash);
+        if (!file.isFile()) {
+            throw Utils.error("Missing object %s.", hash);
+        }
+        try {
+            InputStream in = new BufferedInputStream(
+                    new FileInputStream(file), Codec.BUFFER_SIZE);
+            in.read();
+            return Codec.unwrap(in);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Write the contents stored under HASH to OUT without copying them
+     *  onto the heap: a stored loose object is transferred by the file
+     *  system, a packed one is written from the mapped pack, and
+     *  compressed ones are decompressed through a direct buffer.*/
+    static void transfer(String hash, WritableByteChannel out) {
+        byte[] id = Utils.fromHex(hash);
+        try {
+            for (Pack pack : Pack.all()) {
+                int offset = pack.find(id);
+                if (offset >= 0) {
+                    pack.transfer(offset, out);
+                    return;
+                }
+            }
+            File file = path(hash);
+            if (!file.isFile()) {
+                throw Utils.error("Missing object %s.", hash);
+            }
+            try (FileChannel in = FileChannel.open(file.toPath())) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+                if (in.read(header, 0) < HEADER_LENGTH) {
+                    throw new IOException("empty file");
+                }
+                Codec codec = Codec.forid(header.get(1));
+                long size = in.size() - HEADER_LENGTH;
+                if (codec == Codec.NONE) {
+                    for (long done = 0; done < size;) {
+                        done += in.transferTo(HEADER_LENGTH + done,
+                                size - done, out);
+                    }
+                } else {
+                    codec.transfer(in.map(FileChannel.MapMode.READ_ONLY,
+                            HEADER_LENGTH, size), out);
+                }
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Return the type of the object stored under HASH.*/
+    static int type(String hash) {
+        byte[] id = Utils.fromHex(hash);
+        for (Pack pack : Pack.all()) {
+            int offset = pack.find(id);
+            if (offset >= 0) {
+                return pack.type(offset);
+            }
+        }
+        try (InputStream in = new FileInputStream(path(hash))) {
+            return in.read();
+        } catch (IOException excp) {
+            throw Utils.error("Missing object %s.", hash);
+        }
+    }
+
+    /** Return the size of the contents stored under HASH.*/
+    static long size(String hash) {
+        byte[] id = Utils.fromHex(hash);
+        for (Pack pack : Pack.all()) {
+            int offset = pack.find(id);
+            if (offset >= 0) {
+                return pack.size(offset);
+            }
+        }
+        try (InputStream in = open(hash)) {
+            return in.transferTo(OutputStream.nullOutputStream());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Return the contents stored under HASH, through the object cache.
+     *  The contents returned must not be modified.*/
+    static byte[] read(String hash) {
+        ObjectCache cache = ObjectCache.shared();
+        byte[] content = cache.get(hash);
+        if (content == null) {
+            try (InputStream in = open(hash)) {
+                content = in.readAllBytes();
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+            cache.put(hash, content);
+        }
+        return content;
+    }
+
+    /** Return true if an object with HASH is stored.*/
+    static boolean contains(String hash) {
+        byte[] id = Utils.fromHex(hash);
+        for (Pack pack : Pack.all()) {
+            if (pack.find(id) >= 0) {
+                return true;
+            }
+        }
+        return path(hash).isFile();
+    }
+
+    /** Fold all loose objects and existing packs into new packs, then
+     *  delete what they replace. Objects too large to pack stay loose.
+     *  NAMES maps blob hashes to a file name they were committed under,
+     *  used to pick delta bases.*/
+    static void repack(Map<String, String> names) {
+        List<Pack> oldpacks = new ArrayList<>(Pack.all());
+        Set<String> hashes = new HashSet<>();
+        for (Pack pack : oldpacks) {
+            for (int k = 0; k < pack.count(); k += 1) {
+                hashes.add(pack.hash(k));
+            }
+        }
+        List<File> loose = new ArrayList<>();
+        for (String dir : Utils.directoriesIn(OBJECT_FOLDER)) {
+            if (dir.length() != FANOUT_LENGTH) {
+                continue;
+            }
+            File folder = Utils.join(OBJECT_FOLDER, dir);
+            for (String name : Utils.plainFilenamesIn(folder)) {
+                File file = Utils.join(folder, name);
+                if (name.length() == Utils.UID_LENGTH - FANOUT_LENGTH
+                        && file.length() <= Pack.MAX_OBJECT_SIZE) {
+                    hashes.add(dir + name);
+                    loose.add(file);
+                }
+            }
+        }
+        if (loose.isEmpty() && oldpacks.size() <= 1) {
+            return;
+        }
+        try {
+            List<String> packs = Pack.write(new ArrayList<>(hashes), names);
+            for (Pack pack : oldpacks) {
+                if (!packs.contains(pack.name())) {
+                    pack.delete();
+                }
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        for (File file : loose) {
+            file.delete();
+            file.getParentFile().delete();
+        }
+        Pack.reset();
+    }
+
+    /** Return the file holding the object with HASH.*/
+    private static File path(String hash) {
+        return Utils.join(OBJECT_FOLDER, hash.substring(0, FANOUT_LENGTH),
+                hash.substring(FANOUT_LENGTH));
+    }
+}
@@ -0,0 +1,505 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/** A pack: many objects in one data file, found through a sorted index.
+ *  Both files are memory-mapped, so looking up an object is a binary
+ *  search over the index and reading it is a slice of the data file.
+ *
+ *  The data file holds, for every object, its type, the id of the codec
+ *  it was compressed with, its size, its stored size and its stored
+ *  bytes. An object stored as a {@link Delta} has DELTA added to its type
+ *  and the offset of its base before its stored bytes. The index file
+ *  holds a fan-out table giving, for every first byte B, the number of
+ *  objects whose hash starts with a byte <= B, then the sorted 20-byte
+ *  hashes, then the offset of each object in the data file.
+ *  @author Qindan Zhu
+ */
+class Pack {
+
+    /** The pack folder.*/
+    static final File PACK_FOLDER = Utils.join(ObjectStore.OBJECT_FOLDER,
+            "pack");
+    /** Length of a raw hash.*/
+    static final int HASH_LENGTH = 20;
+    /** Number of fan-out entries.*/
+    static final int FANOUT = 256;
+    /** Magic number of a data file.*/
+    static final int PACK_MAGIC = 0x5041434b;
+    /** Magic number of an index file.*/
+    static final int INDEX_MAGIC = 0x50494458;
+    /** Format version of both files.*/
+    static final int VERSION = 1;
+    /** Length of the header of both files.*/
+    static final int HEADER_LENGTH = 12;
+    /** Length of the header of each object in the data file.*/
+    static final int ENTRY_HEADER_LENGTH = 10;
+    /** Largest data file written; a mapping cannot exceed 2 GB.*/
+    static final long MAX_PACK_SIZE = 1L << 30;
+    /** Largest object put in a pack; bigger objects stay loose.*/
+    static final long MAX_OBJECT_SIZE = 1L << 26;
+    /** Flag added to the type of an entry stored as a delta.*/
+    static final int DELTA = 0x80;
+    /** Largest blob considered for delta compression.*/
+    static final int MAX_DELTA_SIZE = 1 << 24;
+    /** Total size of the delta bases cached by each pack.*/
+    static final long BASE_CACHE_SIZE = 1L << 24;
+    /** Config key of the longest chain of deltas.*/
+    static final String DEPTH_KEY = "pack.depth";
+    /** Config key of the number of blobs tried as delta bases.*/
+    static final String WINDOW_KEY = "pack.window";
+    /** Default longest chain of deltas.*/
+    static final int DEFAULT_DEPTH = 10;
+    /** Default number of blobs tried as delta bases.*/
+    static final int DEFAULT_WINDOW = 10;
+
+    /** The packs of this repository, or null if not yet opened.*/
+    private static List<Pack> _packs;
+
+    /** The mapped index file.*/
+    private final MappedByteBuffer _index;
+    /** The mapped data file.*/
+    private final MappedByteBuffer _data;
+    /** Number of objects in the pack.*/
+    private final int _count;
+    /** Recently rebuilt delta bases by offset, least recently used
+     *  first.*/
+    private final LinkedHashMap<Integer, byte[]> _bases =
+        new LinkedHashMap<>(16, 0.75f, true);
+    /** Total size of the cached delta bases.*/
+    private long _basebytes;
+    /** Name of the pack.*/
+    private final String _name;
+
+    /** Open the pack called NAME in the pack folder.*/
+    Pack(String name) {
+        _name = name;
+        _index = map(Utils.join(PACK_FOLDER, name + ".idx"));
+        _data = map(Utils.join(PACK_FOLDER, name + ".pack"));
+        if (_index.getInt(0) != INDEX_MAGIC
+                || _data.getInt(0) != PACK_MAGIC) {
+            throw Utils.error("Corrupt pack %s.", name);
+        }
+        _count = _index.getInt(HEADER_LENGTH + (FANOUT - 1) * 4);
+    }
+
+    /** Return all packs of this repository.*/
+    static synchronized List<Pack> all() {
+        if (_packs == null) {
+            _packs = new ArrayList<>();
+            String[] files = PACK_FOLDER.list();
+            if (files != null) {
+                Arrays.sort(files);
+                for (String file : files) {
+                    if (file.endsWith(".idx")) {
+                        _packs.add(new Pack(file.substring(0,
+                                file.length() - ".idx".length())));
+                    }
+                }
+            }
+        }
+        return _packs;
+    }
+
+    /** Forget the opened packs, so that they are listed again.*/
+    static synchronized void reset() {
+        _packs = null;
+    }
+
+    /** Return the name of this pack.*/
+    String name() {
+        return _name;
+    }
+
+    /** Return the number of objects in this pack.*/
+    int count() {
+        return _count;
+    }
+
+    /** Return the position in the data file of the object with raw
+     *  hash ID, or -1 if it is not in this pack.*/
+    int find(byte[] id) {
+        int first = id[0] & 0xff;
+        int lo = first == 0 ? 0 : fanout(first - 1);
+        int hi = fanout(first) - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = compare(mid, id);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                return offset(mid);
+            }
+        }
+        return -1;
+    }
+
+    /** Return the total size of the delta bases now cached.*/
+    synchronized long cachedbytes() {
+        return _basebytes;
+    }
+
+    /** Return the hex hash of the K-th object in index order.*/
+    String hash(int k) {
+        byte[] id = new byte[HASH_LENGTH];
+        _index.get(hashposition(k), id);
+        return Utils.toHex(id);
+    }
+
+    /** Return the type of the object at OFFSET.*/
+    int type(int offset) {
+        return _data.get(offset) & ~DELTA;
+    }
+
+    /** Return the size of the object at OFFSET.*/
+    int size(int offset) {
+        return _data.getInt(offset + 2);
+    }
+
+    /** Return a stream of the contents of the object at OFFSET.*/
+    InputStream open(int offset) {
+        if (isdelta(offset)) {
+            return new ByteArrayInputStream(content(offset));
+        }
+        return stored(offset);
+    }
+
+    /** Write the contents of the object at OFFSET to OUT, straight from
+     *  the mapped data file unless it is stored as a delta.*/
+    void transfer(int offset, WritableByteChannel out) throws IOException {
+        if (isdelta(offset)) {
+            Codec.write(ByteBuffer.wrap(content(offset)), out);
+            return;
+        }
+        Codec codec = Codec.forid(_data.get(offset + 1));
+        int length = _data.getInt(offset + 2 + 4);
+        codec.transfer(_data.slice(offset + ENTRY_HEADER_LENGTH, length),
+                out);
+    }
+
+    /** Return true if the object at OFFSET is stored as a delta.*/
+    private boolean isdelta(int offset) {
+        return (_data.get(offset) & DELTA) != 0;
+    }
+
+    /** Return a stream of the stored bytes of the entry at OFFSET, which
+     *  are the object itself or its delta, decompressed.*/
+    private InputStream stored(int offset) {
+        Codec codec = Codec.forid(_data.get(offset + 1));
+        int length = _data.getInt(offset + 2 + 4);
+        int start = offset + ENTRY_HEADER_LENGTH;
+        if (isdelta(offset)) {
+            start += 4;
+        }
+        ByteBuffer slice = _data.slice(start, length);
+        return codec.decompress(new BufferInputStream(slice));
+    }
+
+    /** Return the contents of the object at OFFSET, applying its chain of
+     *  deltas to the base at the end of it.*/
+    private byte[] content(int offset) {
+        try (InputStream in = stored(offset)) {
+            byte[] body = in.readAllBytes();
+            if (!isdelta(offset)) {
+                return body;
+            }
+            int baseoffset = _data.getInt(offset + ENTRY_HEADER_LENGTH);
+            return Delta.apply(base(baseoffset), body);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Return the contents of the delta base at OFFSET, through a small
+     *  cache so that reading many objects of one chain rebuilds each base
+     *  only once. The cache is shared by all threads reading the pack.*/
+    private synchronized byte[] base(int offset) {
+        byte[] base = _bases.get(offset);
+        if (base == null) {
+            base = content(offset);
+            _bases.put(offset, base);
+            _basebytes += base.length;
+            Iterator<byte[]> oldest = _bases.values().iterator();
+            while (_basebytes > BASE_CACHE_SIZE && oldest.hasNext()) {
+                _basebytes -= oldest.next().length;
+                oldest.remove();
+            }
+        }
+        return base;
+    }
+
+    /** Write the objects with HASHES into new packs and return their
+     *  names. The objects are read through the object store. NAMES maps
+     *  the hash of a blob to a file name it was committed under; blobs
+     *  are written grouped by name, largest first, and each is stored as
+     *  a delta against the best of the few blobs written just before it
+     *  when that saves at least half its size.*/
+    static List<String> write(List<String> hashes, Map<String, String> names)
+            throws IOException {
+        PACK_FOLDER.mkdirs();
+        List<String> result = new ArrayList<>();
+        List<String> order = writeorder(hashes, names);
+        int start = 0;
+        while (start < order.size()) {
+            File temp = File.createTempFile("pack", ".tmp", PACK_FOLDER);
+            HashMap<String, Integer> offsets = new HashMap<>();
+            Deque<Candidate> window = new ArrayDeque<>();
+            int end = start;
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(temp),
+                            Codec.BUFFER_SIZE))) {
+                out.writeInt(PACK_MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(0);
+                while (end < order.size() && out.size() < MAX_PACK_SIZE) {
+                    offsets.put(order.get(end), out.size());
+                    writeentry(out, order.get(end), window);
+                    end += 1;
+                }
+            }
+            List<String> contents = new ArrayList<>(order.subList(start, end));
+            Collections.sort(contents);
+            String name = "pack-" + Utils.sha1(new ArrayList<>(contents));
+            File tempindex = File.createTempFile("idx", ".tmp", PACK_FOLDER);
+            writeindex(tempindex, contents, offsets);
+            fixcount(temp, contents.size());
+            if (!temp.renameTo(Utils.join(PACK_FOLDER, name + ".pack"))
+                    || !tempindex.renameTo(Utils.join(PACK_FOLDER,
+                            name + ".idx"))) {
+                throw new IOException("cannot write pack " + name);
+            }
+            result.add(name);
+            start = end;
+        }
+        return result;
+    }
+
+    /** Delete this pack's files.*/
+    void delete() {
+        Utils.join(PACK_FOLDER, _name + ".idx").delete();
+        Utils.join(PACK_FOLDER, _name + ".pack").delete();
+    }
+
+    /** Return HASHES in the order they are written to a pack: first the
+     *  objects that are not blobs, then the blobs sorted by the file
+     *  name NAMES gives them and by decreasing size, so that versions of
+     *  one file sit next to each other.*/
+    private static List<String> writeorder(List<String> hashes,
+                                           Map<String, String> names) {
+        List<String> others = new ArrayList<>();
+        List<String> blobs = new ArrayList<>();
+        HashMap<String, Long> sizes = new HashMap<>();
+        for (String hash : hashes) {
+            if (ObjectStore.type(hash) == ObjectStore.BLOB) {
+                blobs.add(hash);
+                sizes.put(hash, ObjectStore.size(hash));
+            } else {
+                others.add(hash);
+            }
+        }
+        Collections.sort(others);
+        blobs.sort(Comparator.comparing(
+                (String hash) -> names.getOrDefault(hash, ""))
+                .thenComparing(hash -> -sizes.get(hash))
+                .thenComparing(hash -> hash));
+        others.addAll(blobs);
+        return others;
+    }
+
+    /** Append the object with HASH to OUT, as a delta against one of the
+     *  objects in WINDOW if that is smaller, and add it to WINDOW.*/
+    private static void writeentry(DataOutputStream out, String hash,
+                                   Deque<Candidate> window)
+            throws IOException {
+        int offset = out.size();
+        int type = ObjectStore.type(hash);
+        byte[] content = ObjectStore.read(hash);
+        byte[] body = content;
+        Candidate base = null;
+        if (type == ObjectStore.BLOB && content.length <= MAX_DELTA_SIZE) {
+            int maxdepth = Config.getint(DEPTH_KEY, DEFAULT_DEPTH);
+            for (Candidate candidate : window) {
+                if (candidate._depth >= maxdepth) {
+                    continue;
+                }
+                byte[] delta = Delta.create(candidate._content, content);
+                if (delta.length < Math.min(body.length,
+                        content.length / 2)) {
+                    body = delta;
+                    base = candidate;
+                }
+            }
+            window.addLast(new Candidate(content, offset,
+                    base == null ? 0 : base._depth + 1));
+            if (window.size() > Config.getint(WINDOW_KEY, DEFAULT_WINDOW)) {
+                window.removeFirst();
+            }
+        }
+        ByteArrayOutputStream stored = new ByteArrayOutputStream();
+        Codec codec = Codec.configured();
+        try (OutputStream compressed = codec.compress(stored)) {
+            compressed.write(body);
+        }
+        out.writeByte(base == null ? type : type | DELTA);
+        out.writeByte(codec.id());
+        out.writeInt(content.length);
+        out.writeInt(stored.size());
+        if (base != null) {
+            out.writeInt(base._offset);
+        }
+        stored.writeTo(out);
+    }
+
+    /** Write the index FILE for the sorted HASHES stored at OFFSETS.*/
+    private static void writeindex(File file, List<String> hashes,
+                                   Map<String, Integer> offsets)
+            throws IOException {
+        int[] fanout = new int[FANOUT];
+        for (String hash : hashes) {
+            fanout[Integer.parseInt(hash.substring(0, 2), 16)] += 1;
+        }
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file),
+                        Codec.BUFFER_SIZE))) {
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(hashes.size());
+            int total = 0;
+            for (int count : fanout) {
+                total += count;
+                out.writeInt(total);
+            }
+            for (String hash : hashes) {
+                out.write(Utils.fromHex(hash));
+            }
+            for (String hash : hashes) {
+                out.writeInt(offsets.get(hash));
+            }
+        }
+    }
+
+    /** Record the object COUNT in the header of the data file FILE.*/
+    private static void fixcount(File file, int count) throws IOException {
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.seek(HEADER_LENGTH - 4);
+            out.writeInt(count);
+        }
+    }
+
+    /** Return the value of fan-out entry K.*/
+    private int fanout(int k) {
+        return _index.getInt(HEADER_LENGTH + k * 4);
+    }
+
+    /** Return the position in the index of the K-th hash.*/
+    private int hashposition(int k) {
+        return HEADER_LENGTH + FANOUT * 4 + k * HASH_LENGTH;
+    }
+
+    /** Return the data file offset of the K-th object.*/
+    private int offset(int k) {
+        return _index.getInt(HEADER_LENGTH + FANOUT * 4
+                + _count * HASH_LENGTH + k * 4);
+    }
+
+    /** Compare the K-th hash of the index with ID.*/
+    private int compare(int k, byte[] id) {
+        int position = hashposition(k);
+        for (int i = 0; i < HASH_LENGTH; i += 1) {
+            int cmp = Integer.compare(_index.get(position + i) & 0xff,
+                    id[i] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
+
+    /** Return FILE mapped read-only into memory.*/
+    private static MappedByteBuffer map(File file) {
+        try (RandomAccessFile in = new RandomAccessFile(file, "r");
+             FileChannel channel = in.getChannel()) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** A blob recently written to a pack, tried as a delta base.*/
+    private static class Candidate {
+        /** Contents of the blob.*/
+        private final byte[] _content;
+        /** Offset of the blob in the pack.*/
+        private final int _offset;
+        /** Number of deltas between the blob and a whole object.*/
+        private final int _depth;
+
+        /** A candidate with CONTENT at OFFSET, DEPTH deltas deep.*/
+        Candidate(byte[] content, int offset, int depth) {
+            _content = content;
+            _offset = offset;
+            _depth = depth;
+        }
+    }
+
+    /** An input stream reading the remaining bytes of a buffer.*/
+    static class BufferInputStream extends InputStream {
+        /** The buffer read from.*/
+        private final ByteBuffer _buffer;
+
+        /** A stream over the remaining bytes of BUFFER.*/
+        BufferInputStream(ByteBuffer buffer) {
+            _buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return _buffer.hasRemaining() ? _buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!_buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, _buffer.remaining());
+            _buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return _buffer.remaining();
+        }
+    }
+}
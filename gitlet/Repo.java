@@ -1,30 +1,62 @@
 package gitlet;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.Serializable;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
-import java.util.Deque;
-import java.util.LinkedList;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.TreeMap;
+import java.util.Map;
 import java.util.List;
 import java.util.HashMap;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import java.util.stream.IntStream;
 
 /** The repo class.
  * @author Qindan Zhu
  */
-public class Repo implements Serializable {
-    /** The maximum.*/
-    static final int MAXVALUE = 1345555;
-    /** The stage folder.*/
-    static final File STAGE_FOLDER = new File(Main.MAIN_FOLDER, "staging");
+public class Repo {
+    /** Magic number of the encoded index.*/
+    static final int INDEX_MAGIC = 0x47494458;
+    /** Number of commits global-log decodes before its first output.*/
+    static final int LOG_BATCH = 64;
+    /** Most commits global-log decodes at once.*/
+    static final int MAX_LOG_BATCH = 4096;
+    /** Size of the output buffer of global-log.*/
+    static final int LOG_BUFFER_SIZE = 1 << 16;
+    /** Format version of the encoded index.*/
+    static final int VERSION = 2;
+    /** First format version of the index that holds stat data.*/
+    static final int STAT_VERSION = 2;
     /** The branch folder.*/
     static final File BRANCH_FOLDER = new File(Main.MAIN_FOLDER, "ref");
-    /** The commit folder.*/
-    static final File COMMIT_FOLDER = new File(Main.MAIN_FOLDER, "commit");
+    /** The index, holding the stage.*/
+    static final File INDEX_FILE = new File(Main.MAIN_FOLDER, "index");
+    /** The single record of the repo state written by the first
+     *  versions of Gitlet, whose format is no longer read.*/
+    static final File OLD_RECORD = new File(Main.MAIN_FOLDER, "gitlet");
+    /** The commit list, holding the hashcodes of all commits.*/
+    static final File COMMITS_FILE = new File(Main.MAIN_FOLDER, "commits");
 
     /** Marker for a initialized repo.*/
     private Boolean _initialized;
@@ -34,18 +66,35 @@ public class Repo implements Serializable {
     private ArrayList<String> _stage = new ArrayList<>();
     /** The currently untracked files.*/
     private ArrayList<String> _untracked = new ArrayList<>();
-    /** The commit hashcodes array.*/
+    /** The commit hashcodes array, or null if not yet read.*/
     private ArrayList<String> _commits = new ArrayList<>();
+    /** The commits made since the commit list was written.*/
+    private ArrayList<String> _newcommits = new ArrayList<>();
     /** The branch array.*/
     private ArrayList<String> _branches = new ArrayList<>();
-    /** Splitid for each branch.*/
-    private HashMap<String, String> _splitid = new HashMap<>();
-    /** The current blobs.*/
-    private HashMap<String, Blob> _currblobs = new HashMap<>();
+    /** The current blob hashcodes keyed by file name.*/
+    private HashMap<String, String> _currblobs = new HashMap<>();
     /** The hashcode for current commit.*/
     private String _currcommit;
     /** The current branch name.*/
     private String _currbranch;
+    /** The current branch name as last written.*/
+    private String _savedbranch;
+    /** The commit graph, or null if not yet read.*/
+    private CommitGraph _graph;
+    /** The encoded index as last written.*/
+    private byte[] _savedindex;
+    /** The stat data of the working files whose content is the blob in
+     *  _currblobs, keyed by file name.*/
+    private HashMap<String, FileStat> _stats = new HashMap<>();
+    /** Modification time of the index when it was read.*/
+    private long _indextime;
+    /** Marker that the index must be rewritten even if unchanged, so that
+     *  racily clean entries become trustworthy.*/
+    private boolean _refreshindex;
+    /** The heads of the branches changed since the branch folder was
+     *  written, keyed by branch name, null for a removed branch.*/
+    private HashMap<String, String> _refs = new HashMap<>();
 
 
     /**Constructor for repo.*/
@@ -53,16 +102,316 @@ public class Repo implements Serializable {
         _initialized = false;
     }
 
-    /**Return the repo from record file.*/
+    /**Return the repo from the state files: the current branch from the
+     * record, the branches and current commit from the branch folder and
+     * the stage from the index. The commit list is read on first use.*/
     public static Repo fromFile() {
-        return Utils.readObject(Main.RECORD, Repo.class);
+        if (!Main.RECORD.isFile() && OLD_RECORD.isFile()) {
+            throw Utils.error("This repository was made by an older "
+                    + "version of Gitlet and cannot be read.");
+        }
+        Repo repo = new Repo();
+        repo._initialized = true;
+        repo._commits = null;
+        repo._currbranch = Utils.readContentsAsString(Main.RECORD);
+        repo._savedbranch = repo._currbranch;
+        repo._currcommit = Utils.readContentsAsString(
+                Utils.join(BRANCH_FOLDER, repo._currbranch));
+        repo._branches = new ArrayList<>(
+                Utils.plainFilenamesIn(BRANCH_FOLDER));
+        repo._savedindex = Utils.readContents(INDEX_FILE);
+        try (DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(repo._savedindex))) {
+            int version = Encoding.readheader(in, INDEX_MAGIC, VERSION);
+            repo._currblobs = Encoding.readhashmap(in);
+            repo._stage = Encoding.readstrings(in);
+            repo._remove = Encoding.readstrings(in);
+            repo._untracked = Encoding.readstrings(in);
+            if (version >= STAT_VERSION) {
+                int size = Encoding.readlength(in);
+                for (int i = 0; i < size; i += 1) {
+                    String name = Encoding.readstring(in);
+                    repo._stats.put(name, FileStat.read(in));
+                }
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        repo._indextime = FileStat.mtime(INDEX_FILE);
+        return repo;
+    }
+
+    /**Write the parts of the repo state changed since it was read: the
+     * commits made, which are appended to the commit list and the commit
+     * graph, the heads of the branches, the record of the current branch
+     * and the index. They are written in that order, so that a process
+     * killed part way leaves no branch at a commit missing from the
+     * commit list.*/
+    public void save() {
+        if (!_initialized) {
+            return;
+        }
+        if (!_newcommits.isEmpty()) {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(
+                            COMMITS_FILE, true)))) {
+                for (String commithash : _newcommits) {
+                    Encoding.writehash(out, commithash);
+                }
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+            _newcommits.clear();
+        }
+        if (_graph != null) {
+            _graph.save();
+        }
+        for (Map.Entry<String, String> ref : _refs.entrySet()) {
+            File file = Utils.join(BRANCH_FOLDER, ref.getKey());
+            if (ref.getValue() == null) {
+                file.delete();
+            } else {
+                Utils.writeContents(file, ref.getValue());
+            }
+        }
+        _refs.clear();
+        if (!_currbranch.equals(_savedbranch)) {
+            Utils.writeContents(Main.RECORD, _currbranch);
+            _savedbranch = _currbranch;
+        }
+        byte[] index = encodeindex();
+        if (_refreshindex || !Arrays.equals(index, _savedindex)) {
+            File temp = Utils.join(Main.MAIN_FOLDER, "index.tmp");
+            Utils.writeContents(temp, (Object) index);
+            if (!temp.renameTo(INDEX_FILE)) {
+                Utils.writeContents(INDEX_FILE, (Object) index);
+            }
+            _savedindex = index;
+            _refreshindex = false;
+        }
+    }
+
+    /**Return the head of the branch NAME, as changed since the branch
+     * folder was written.*/
+    private String readref(String name) {
+        if (_refs.containsKey(name)) {
+            return _refs.get(name);
+        }
+        return Utils.readContentsAsString(Utils.join(BRANCH_FOLDER, name));
+    }
+
+    /**Make HASH the head of the branch NAME, or remove the branch if HASH
+     * is null. The branch folder is written by save().*/
+    private void writeref(String name, String hash) {
+        _refs.put(name, hash);
+    }
+
+    /**Return the hashcodes of the commits in the commit list as last
+     * written, in the order they were made.*/
+    private List<String> savedcommits() {
+        List<String> commits = commits();
+        return commits.subList(0, commits.size() - _newcommits.size());
+    }
+
+    /**Return a copy of the state of this repo that commands run on this
+     * repo afterwards leave unchanged, to go back to with restore. The
+     * commit list and commit graph are not copied, as commands only
+     * append to them.*/
+    Repo snapshot() {
+        Repo copy = new Repo();
+        copy._initialized = _initialized;
+        copy._remove = new ArrayList<>(_remove);
+        copy._stage = new ArrayList<>(_stage);
+        copy._untracked = new ArrayList<>(_untracked);
+        copy._newcommits = new ArrayList<>(_newcommits);
+        copy._branches = new ArrayList<>(_branches);
+        copy._currblobs = new HashMap<>(_currblobs);
+        copy._currcommit = _currcommit;
+        copy._currbranch = _currbranch;
+        copy._savedbranch = _savedbranch;
+        copy._savedindex = _savedindex;
+        copy._stats = new HashMap<>(_stats);
+        copy._indextime = _indextime;
+        copy._refreshindex = _refreshindex;
+        copy._refs = new HashMap<>(_refs);
+        return copy;
+    }
+
+    /**Put back the state of this repo kept in SNAPSHOT, taken from it by
+     * snapshot() since it was last saved, and drop the commits made since
+     * from the commit list and commit graph.*/
+    void restore(Repo snapshot) {
+        int added = _newcommits.size() - snapshot._newcommits.size();
+        if (_commits != null) {
+            _commits.subList(_commits.size() - added, _commits.size())
+                .clear();
+        }
+        if (_graph != null) {
+            _graph.truncate(_graph.count() - added);
+        }
+        _initialized = snapshot._initialized;
+        _remove = snapshot._remove;
+        _stage = snapshot._stage;
+        _untracked = snapshot._untracked;
+        _newcommits = snapshot._newcommits;
+        _branches = snapshot._branches;
+        _currblobs = snapshot._currblobs;
+        _currcommit = snapshot._currcommit;
+        _currbranch = snapshot._currbranch;
+        _savedbranch = snapshot._savedbranch;
+        _savedindex = snapshot._savedindex;
+        _stats = snapshot._stats;
+        _indextime = snapshot._indextime;
+        _refreshindex = snapshot._refreshindex;
+        _refs = snapshot._refs;
+        _merge = false;
+    }
+
+    /**Return the encoded index: the blobs of the next commit, the staged,
+     * removed and untracked file names, and the stat data of the working
+     * files in name order.*/
+    private byte[] encodeindex() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            Encoding.writeheader(out, INDEX_MAGIC, VERSION);
+            Encoding.writehashmap(out, _currblobs);
+            Encoding.writestrings(out, _stage);
+            Encoding.writestrings(out, _remove);
+            Encoding.writestrings(out, _untracked);
+            Encoding.writelength(out, _stats.size());
+            for (String name : new TreeSet<>(_stats.keySet())) {
+                Encoding.writestring(out, name);
+                _stats.get(name).write(out);
+            }
+            out.close();
+            return bytes.toByteArray();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**Return the hashes of the working files NAMES that exist, keyed by
+     * name. A file is only read if its stat data differs from that
+     * recorded when it was last hashed, or was recorded so close to the
+     * writing of the index that a change since could have kept it. The
+     * files that must be read are hashed in parallel.*/
+    private HashMap<String, String> workinghashes(Collection<String> names) {
+        return workinghashes(names, false);
+    }
+
+    /**Return the hashes of the working files NAMES that exist, keyed by
+     * name, as workinghashes(NAMES) does. If STORE, the files that are
+     * read are also written to the object store, and as they are about
+     * to be staged their stat data is recorded.*/
+    private HashMap<String, String> workinghashes(Collection<String> names,
+                                                  boolean store) {
+        HashMap<String, String> hashes = new HashMap<>();
+        HashMap<String, FileStat> changed = new HashMap<>();
+        for (String name : names) {
+            FileStat stat = FileStat.of(Utils.join(Main.CURR_FOLDER, name));
+            FileStat cached = _stats.get(name);
+            if (stat == null) {
+                _stats.remove(name);
+            } else if (_currblobs.containsKey(name) && stat.equals(cached)
+                    && !cached.racy(_indextime)) {
+                hashes.put(name, _currblobs.get(name));
+            } else {
+                changed.put(name, stat);
+            }
+        }
+        HashMap<String, String> read = store
+            ? WorkTree.store(Main.CURR_FOLDER, changed.keySet())
+            : WorkTree.hash(Main.CURR_FOLDER, changed.keySet());
+        for (String name : changed.keySet()) {
+            String hash = read.get(name);
+            FileStat stat = changed.get(name);
+            if (hash != null && (store || hash.equals(_currblobs.get(name)))) {
+                _refreshindex |= stat.equals(_stats.get(name));
+                _stats.put(name, stat);
+            } else {
+                _stats.remove(name);
+            }
+            if (hash != null) {
+                hashes.put(name, hash);
+            }
+        }
+        return hashes;
+    }
+
+    /**Return the hash of the working file NAME, or null if it does not
+     * exist, reading it only if its stat data changed.*/
+    private String workinghash(String name) {
+        return workinghashes(Collections.singleton(name)).get(name);
+    }
+
+    /**Return the hashes of the working files NAMES that exist, keyed by
+     * name, as workinghashes(NAMES) does, storing the contents of those
+     * not yet in the object store, so that a checkout failing after it
+     * has replaced them can put them back.*/
+    private HashMap<String, String> saveworking(Collection<String> names) {
+        HashMap<String, String> hashes = workinghashes(names);
+        List<String> unsaved = new ArrayList<>();
+        for (Map.Entry<String, String> entry : hashes.entrySet()) {
+            if (!ObjectStore.contains(entry.getValue())) {
+                unsaved.add(entry.getKey());
+            }
+        }
+        hashes.keySet().removeAll(unsaved);
+        hashes.putAll(WorkTree.store(Main.CURR_FOLDER, unsaved));
+        return hashes;
+    }
+
+    /**Record the stat data of the working file NAME, whose content is
+     * the blob of NAME in _currblobs.*/
+    private void recordstat(String name) {
+        FileStat stat = FileStat.of(Utils.join(Main.CURR_FOLDER, name));
+        if (stat == null) {
+            _stats.remove(name);
+        } else {
+            _stats.put(name, stat);
+        }
+    }
+
+    /**Return the hashcodes of all commits in the order they were made,
+     * reading the commit list on first use.*/
+    private ArrayList<String> commits() {
+        if (_commits == null) {
+            byte[] list = COMMITS_FILE.exists()
+                ? Utils.readContents(COMMITS_FILE) : new byte[0];
+            int count = list.length / Encoding.HASH_LENGTH;
+            _commits = new ArrayList<>(count + _newcommits.size());
+            for (int i = 0; i < count; i += 1) {
+                _commits.add(Utils.toHex(Arrays.copyOfRange(list,
+                        i * Encoding.HASH_LENGTH,
+                        (i + 1) * Encoding.HASH_LENGTH)));
+            }
+            _commits.addAll(_newcommits);
+        }
+        return _commits;
+    }
+
+    /**Return the commit graph, reading it on first use.*/
+    private CommitGraph graph() {
+        if (_graph == null) {
+            _graph = CommitGraph.read(commits());
+        }
+        return _graph;
+    }
+
+    /**Record the new COMMIT in the commit graph and the commit list.*/
+    private void addcommit(Commit commit) {
+        graph().add(commit);
+        _newcommits.add(commit.hashcode());
+        if (_commits != null) {
+            _commits.add(commit.hashcode());
+        }
     }
 
     /** Main processor to handle different commands given the ARGS.*/
     public void process(String[] args) throws IOException {
         if (!args[0].equals("init") && !_initialized) {
-            System.out.println("Not in an initialized Gitlet directory.");
-            System.exit(0);
+            throw Utils.error("Not in an initialized Gitlet directory.");
         }
         switch (args[0]) {
         case "init":
@@ -104,6 +453,18 @@ public class Repo implements Serializable {
         case "merge":
             merge(args);
             break;
+        case "config":
+            config(args);
+            break;
+        case "repack":
+            repack(args);
+            break;
+        case "merge-base":
+            mergebase(args);
+            break;
+        case "diff":
+            diff(args);
+            break;
         default:
             break;
         }
@@ -112,117 +473,122 @@ public class Repo implements Serializable {
     /**command init given ARGS.*/
     private void init(String[] args) throws IOException {
         if (args.length > 1) {
-            System.out.println("Incorrect operands.");
-            System.exit(0);
+            throw Utils.error("Incorrect operands.");
         } else {
             if (!_initialized) {
                 Main.MAIN_FOLDER.mkdir();
-                STAGE_FOLDER.mkdir();
+                ObjectStore.OBJECT_FOLDER.mkdir();
                 BRANCH_FOLDER.mkdir();
-                COMMIT_FOLDER.mkdir();
                 _currbranch = "master";
                 Commit newcommit = new Commit("initial commit");
-                _commits.add(newcommit.hashcode());
+                addcommit(newcommit);
                 _branches.add(_currbranch);
                 _currcommit = newcommit.hashcode();
                 _initialized = true;
-                Utils.writeObject(Utils.join(COMMIT_FOLDER,
-                        newcommit.hashcode()),
-                        newcommit);
-                Utils.writeContents(Utils.join(BRANCH_FOLDER, _currbranch),
-                        _currcommit);
+                newcommit.save();
+                writeref(_currbranch, _currcommit);
             } else {
-                System.out.println("A Gitlet version-control system "
+                throw Utils.error("A Gitlet version-control system "
                         + "already exists in the current directory.");
-                System.exit(0);
             }
         }
     }
 
-    /**Command add given the ARGS.*/
+    /**Command add given the ARGS: stage the files and the files under
+     * the directories they name, which must be in the working directory
+     * and outside the repository folder. The files are stat-checked, and
+     * the changed ones hashed and stored in parallel, before the stage is
+     * updated in one pass.*/
     private void add(String[] args) {
-        if (args.length != 2) {
-            System.out.println("Incorrect operands.");
-            System.exit(0);
-        } else {
-            if (!_initialized) {
-                System.out.println("Not in an initialized Gitlet directory.");
-                System.exit(0);
-            } else {
-                File file = Utils.join(Main.CURR_FOLDER, args[1]);
-                if (!file.exists()) {
-                    System.out.println("File does not exist.");
-                    System.exit(0);
-                } else {
-                    _remove.remove(args[1]);
-                    _untracked.remove(args[1]);
-                    Blob newblob = new Blob(args[1]);
-                    _currblobs.put(newblob.name(), newblob);
-                    _stage.add(args[1]);
-                    Commit savedcommit = Utils.readObject(Utils.join(
-                            COMMIT_FOLDER, _currcommit), Commit.class);
-                    if (savedcommit.blobs() != null
-                            && savedcommit.blobs().containsKey(args[1])) {
-                        String savedhash;
-                        savedhash = savedcommit.blobs().get(
-                                args[1]).hashcode();
-                        if (savedhash.equals(newblob.hashcode())) {
-                            _currblobs.remove(newblob.name());
-                            _stage.remove(newblob.name());
-                            Utils.join(STAGE_FOLDER,
-                                    newblob.hashcode()).delete();
-                        } else {
-                            Utils.join(STAGE_FOLDER, savedhash).delete();
-                            Utils.writeObject(Utils.join(STAGE_FOLDER,
-                                    newblob.hashcode()), newblob);
-                        }
-                    } else {
-                        Utils.writeObject(Utils.join(STAGE_FOLDER,
-                                newblob.hashcode()), newblob);
-                    }
+        if (args.length < 2) {
+            throw Utils.error("Incorrect operands.");
+        }
+        Set<String> names = new TreeSet<>();
+        for (int i = 1; i < args.length; i += 1) {
+            String path = workingpath(args[i]);
+            if (Paths.get(path).isAbsolute() || path.equals("..")
+                    || path.startsWith("../")
+                    || path.equals(Main.MAIN_FOLDER.getName())
+                    || path.startsWith(Main.MAIN_FOLDER.getName() + "/")) {
+                throw Utils.error("File is outside the working directory.");
+            }
+            File file = Utils.join(Main.CURR_FOLDER, path);
+            if (file.isDirectory()) {
+                String prefix = path.isEmpty() ? "" : path + "/";
+                for (String name : WorkTree.files(file)) {
+                    names.add(prefix + name);
                 }
+            } else if (file.isFile()) {
+                names.add(path);
+            } else {
+                throw Utils.error("File does not exist.");
+            }
+        }
+        HashMap<String, String> hashes = workinghashes(names, true);
+        String tree = Commit.fromFile(_currcommit).tree();
+        for (String name : names) {
+            String hash = hashes.get(name);
+            if (hash == null) {
+                continue;
+            }
+            String saved = _currblobs.get(name);
+            if (_stage.contains(name) || _remove.contains(name)) {
+                saved = Tree.find(tree, name);
+            }
+            _remove.remove(name);
+            _untracked.remove(name);
+            _currblobs.put(name, hash);
+            if (hash.equals(saved)) {
+                _stage.remove(name);
+            } else if (!_stage.contains(name)) {
+                _stage.add(name);
             }
         }
     }
 
+    /**Return PATH relative to the working directory, with '/' between
+     * its parts and no trailing '/', or the empty string for the working
+     * directory itself.*/
+    private static String workingpath(String path) {
+        String normal = Paths.get(path).normalize().toString();
+        return normal.replace(File.separatorChar, '/');
+    }
+
     /**Command commit given the ARGS.*/
     private void commit(String[] args) {
         if (args.length > 2) {
-            System.out.println("Incorrect operands.");
-            System.exit(0);
+            throw Utils.error("Incorrect operands.");
         } else {
             if (args.length == 1 || args[1].equals("")) {
-                System.out.println("Please enter a commit message.");
-                System.exit(0);
+                throw Utils.error("Please enter a commit message.");
             } else {
                 if (_stage.isEmpty()
                         && _remove.isEmpty()) {
-                    System.out.println("No changes added to the commit.");
-                    System.exit(0);
+                    throw Utils.error("No changes added to the commit.");
                 } else {
+                    HashMap<String, String> changes = new HashMap<>();
+                    for (String file : _stage) {
+                        changes.put(file, _currblobs.get(file));
+                    }
                     for (String rmfile : _remove) {
-                        if (_currblobs.containsKey(rmfile)) {
-                            _currblobs.remove(rmfile);
-                        }
+                        _currblobs.remove(rmfile);
+                        changes.put(rmfile, null);
                     }
                     _remove.clear();
+                    String tree = Tree.update(
+                            Commit.fromFile(_currcommit).tree(), changes);
                     Commit newcommit;
                     if (_merge) {
-                        newcommit = new Commit(args[1], _currblobs,
+                        newcommit = new Commit(args[1], tree,
                                 _currcommit, _mergeid);
                     } else {
-                        newcommit = new Commit(args[1], _currblobs,
+                        newcommit = new Commit(args[1], tree,
                                 _currcommit);
                     }
-                    _commits.add(newcommit.hashcode());
+                    addcommit(newcommit);
                     _currcommit = newcommit.hashcode();
-                    for (String filename : _stage) {
-                        Utils.join(STAGE_FOLDER, filename).delete();
-                    }
-                    Utils.writeObject(Utils.join(COMMIT_FOLDER,
-                            newcommit.hashcode()), newcommit);
-                    Utils.writeContents(Utils.join(BRANCH_FOLDER, _currbranch),
-                            _currcommit);
+                    newcommit.save();
+                    writeref(_currbranch, _currcommit);
                     _stage.clear();
                     _untracked.clear();
                 }
@@ -233,78 +599,156 @@ public class Repo implements Serializable {
     /**Command log given ARGS.*/
     private void log(String[] args) throws IOException {
         if (args.length > 1) {
-            System.out.println("Incorrect operands.");
-            System.exit(0);
+            throw Utils.error("Incorrect operands.");
         } else {
-            String headcommitstr = Utils.readContentsAsString(
-                    Utils.join(BRANCH_FOLDER, _currbranch));
-            Commit thiscommit = Utils.readObject(Utils.join(COMMIT_FOLDER,
-                    headcommitstr), Commit.class);
-            while (thiscommit != null && !thiscommit.parentid().equals("")) {
+            String headcommitstr = readref(_currbranch);
+            CommitGraph graph = graph();
+            int row = graph.row(headcommitstr);
+            while (row != CommitGraph.NONE) {
+                Commit thiscommit = Commit.fromFile(graph.hash(row));
                 System.out.println("===");
                 System.out.println("commit " + thiscommit.hashcode());
                 if (thiscommit.merge()) {
                     System.out.println("Merge: "
-                            + _currcommit.substring(0, 7)
+                            + thiscommit.parentid().substring(0, 7)
                             + " " + thiscommit.mergeid().substring(0, 7));
                 }
                 System.out.println("Date: " + thiscommit.time());
                 System.out.println(thiscommit.message());
-                System.out.println();
-                thiscommit = Utils.readObject(Utils.join(COMMIT_FOLDER,
-                        thiscommit.parentid()), Commit.class);
+                row = graph.parent(row);
+                if (row != CommitGraph.NONE) {
+                    System.out.println();
+                }
             }
-            System.out.println("===");
-            System.out.println("commit " + thiscommit.hashcode());
-            System.out.println("Date: " + thiscommit.time());
-            System.out.println(thiscommit.message());
         }
     }
 
-    /**Command global-log given ARGS.*/
+    /**Command global-log given ARGS: print every commit in the order
+     * they were made, skipping the first as many as --skip gives and
+     * printing at most as many as -n gives. Commits are decoded in
+     * parallel, a batch ahead of the one being printed.*/
     private void globallog(String[] args) throws IOException {
-        if (args.length > 1) {
-            System.out.println("Incorrect operands.");
-            System.exit(0);
-        } else {
-            for (String commithash:_commits) {
-                Commit thiscommit = Utils.readObject(Utils.join(COMMIT_FOLDER,
-                        commithash), Commit.class);
-                System.out.println("===");
-                System.out.println("commit " + thiscommit.hashcode());
-                System.out.println("Date: " + thiscommit.time());
-                System.out.println(thiscommit.message());
-                System.out.println();
+        int count = Integer.MAX_VALUE;
+        int skip = 0;
+        for (int i = 1; i < args.length; i += 2) {
+            if (i + 1 == args.length || !args[i + 1].matches("\\d{1,9}")
+                    || !(args[i].equals("-n") || args[i].equals("--skip"))) {
+                throw Utils.error("Incorrect operands.");
+            } else if (args[i].equals("-n")) {
+                count = Integer.parseInt(args[i + 1]);
+            } else {
+                skip = Integer.parseInt(args[i + 1]);
+            }
+        }
+        List<String> commits = commits();
+        int start = Math.min(skip, commits.size());
+        int end = (int) Math.min((long) start + count, commits.size());
+        PrintWriter out = new PrintWriter(new BufferedWriter(
+                new OutputStreamWriter(System.out), LOG_BUFFER_SIZE));
+        CompletableFuture<Commit[]> next =
+            decodeheaders(commits, start, Math.min(end, start + LOG_BATCH));
+        while (next != null) {
+            Commit[] batch = join(next);
+            start += batch.length;
+            int size = Math.min(MAX_LOG_BATCH, batch.length * 2);
+            next = start < end
+                ? decodeheaders(commits, start, Math.min(end, start + size))
+                : null;
+            for (Commit thiscommit : batch) {
+                out.println("===");
+                out.println("commit " + thiscommit.hashcode());
+                out.println("Date: " + thiscommit.time());
+                out.println(thiscommit.message());
+                out.println();
+            }
+            out.flush();
+            if (out.checkError() || System.out.checkError()) {
+                break;
+            }
+        }
+    }
+
+    /**Return the commits at positions START to END of COMMITS, without
+     * their blobs, decoding them in parallel in the background.*/
+    private static CompletableFuture<Commit[]> decodeheaders(
+            List<String> commits, int start, int end) {
+        return CompletableFuture.supplyAsync(() ->
+                IntStream.range(start, end).parallel()
+                .mapToObj(i -> Commit.header(commits.get(i)))
+                .toArray(Commit[]::new));
+    }
+
+    /**Return the result of PENDING, rethrowing the exception it failed
+     * with, such as a missing or corrupt object, as its own.*/
+    private static <T> T join(CompletableFuture<T> pending) {
+        try {
+            return pending.join();
+        } catch (CompletionException excp) {
+            if (excp.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) excp.getCause();
             }
+            throw excp;
         }
     }
 
-    /**Command find given ARGS.*/
+    /**Command find given ARGS: print the ids of the commits whose
+     * message contains the query, or matches it with --regex. Only the
+     * candidates the message index leaves are read.*/
     private void find(String[] args) throws IOException {
-        if (args.length != 2) {
-            System.out.println("Incorrect operands.");
-            System.exit(0);
+        boolean regex = args.length == 3 && args[1].equals("--regex");
+        if (args.length != 2 && !regex) {
+            throw Utils.error("Incorrect operands.");
+        }
+        String query = args[args.length - 1];
+        Predicate<String> matches = message -> message.contains(query);
+        Set<Integer> trigrams = MessageIndex.trigrams(query);
+        if (regex) {
+            try {
+                Pattern pattern = Pattern.compile(query);
+                matches = message -> pattern.matcher(message).find();
+            } catch (PatternSyntaxException excp) {
+                throw Utils.error("Invalid pattern.");
+            }
+            trigrams = MessageIndex.regextrigrams(query);
+        }
+        List<String> commits = commits();
+        MessageIndex index = MessageIndex.read();
+        List<String> saved = savedcommits();
+        if (saved.size() - index.count() > MessageIndex.MAX_UNINDEXED) {
+            MessageIndex.update(index, saved);
+            index = MessageIndex.read();
+        }
+        int[] candidates = index.candidates(trigrams);
+        List<Integer> positions = new ArrayList<>();
+        if (candidates == null) {
+            for (int i = 0; i < index.count(); i += 1) {
+                positions.add(i);
+            }
         } else {
-            boolean mark = false;
-            for (String commithash:_commits) {
-                Commit thiscommit = Utils.readObject(Utils.join(COMMIT_FOLDER,
-                        commithash), Commit.class);
-                if (thiscommit.message().contains(args[1])) {
-                    System.out.println(thiscommit.hashcode());
-                    mark = true;
-                }
+            for (int position : candidates) {
+                positions.add(position);
             }
-            if (!mark) {
-                System.out.println("Found no commit with that message.");
+        }
+        for (int i = index.count(); i < commits.size(); i += 1) {
+            positions.add(i);
+        }
+        boolean mark = false;
+        for (int position : positions) {
+            Commit thiscommit = Commit.fromFile(commits.get(position));
+            if (matches.test(thiscommit.message())) {
+                System.out.println(thiscommit.hashcode());
+                mark = true;
             }
         }
+        if (!mark) {
+            System.out.println("Found no commit with that message.");
+        }
     }
 
     /**Command status given ARGS.*/
     private void status(String[] args) throws IOException {
         if (args.length > 1) {
-            System.out.println("Incorrect operands.");
-            System.exit(0);
+            throw Utils.error("Incorrect operands.");
         } else {
             System.out.println("=== Branches ===");
             Collections.sort(_branches);
@@ -331,6 +775,17 @@ public class Repo implements Serializable {
             System.out.println();
             System.out.println("=== Modifications Not "
                     + "Staged For Commit ===");
+            TreeSet<String> tracked = new TreeSet<>(_currblobs.keySet());
+            tracked.removeAll(_remove);
+            HashMap<String, String> hashes = workinghashes(tracked);
+            for (String name : tracked) {
+                String hash = hashes.get(name);
+                if (hash == null) {
+                    System.out.println(name + " (deleted)");
+                } else if (!hash.equals(_currblobs.get(name))) {
+                    System.out.println(name + " (modified)");
+                }
+            }
             System.out.println();
             System.out.println("=== Untracked Files ===");
             Collections.sort(_untracked);
@@ -343,30 +798,27 @@ public class Repo implements Serializable {
     /**Command rm given ARGS.*/
     private void rm(String[] args) {
         if (args.length != 2) {
-            System.out.println("Incorrect operands.");
-            System.exit(0);
+            throw Utils.error("Incorrect operands.");
         } else {
             boolean mark = false;
             if (!_stage.isEmpty() && _stage.contains(args[1])) {
-                Utils.join(STAGE_FOLDER, _currblobs.
-                        get(args[1]).hashcode()).delete();
                 _currblobs.remove(args[1]);
+                _stats.remove(args[1]);
                 _stage.remove(args[1]);
                 _untracked.add(args[1]);
                 mark = true;
             }
-            Commit thiscommit = Utils.readObject(Utils.join(COMMIT_FOLDER,
-                    _currcommit), Commit.class);
-            if (thiscommit.blobnames().contains(args[1])) {
+            Commit thiscommit = Commit.fromFile(_currcommit);
+            if (Tree.find(thiscommit.tree(), args[1]) != null) {
                 _remove.add(args[1]);
                 _untracked.remove(args[1]);
+                _stats.remove(args[1]);
                 Utils.join(Main.CURR_FOLDER, args[1]).delete();
                 mark = true;
             }
 
             if (!mark) {
-                System.out.println("No reason to remove the file.");
-                System.exit(0);
+                throw Utils.error("No reason to remove the file.");
             }
 
         }
@@ -376,34 +828,21 @@ public class Repo implements Serializable {
     private void checkout(String[] args) {
         if (args.length == 3) {
             if (!args[1].equals("--")) {
-                System.out.println("Incorrect operands.");
-                System.exit(0);
+                throw Utils.error("Incorrect operands.");
             } else {
                 checkouthelper(_currcommit, args[2]);
             }
         } else {
             if (args.length == 4) {
                 if (!args[2].equals("--")) {
-                    System.out.println("Incorrect operands.");
-                    System.exit(0);
-                }
-                for (String commitid: _commits) {
-                    if (commitid.substring(0,
-                            args[1].length()).equals(args[1])) {
-                        args[1] = commitid;
-                    }
-                }
-                if (!_commits.contains(args[1])) {
-                    System.out.println("No commit with that id exists.");
-                } else {
-                    checkouthelper(args[1], args[3]);
+                    throw Utils.error("Incorrect operands.");
                 }
+                checkouthelper(resolvecommit(args[1]), args[3]);
             } else {
                 if (args.length == 2) {
                     checkoutbranch(args);
                 } else {
-                    System.out.println("Incorrect operands.");
-                    System.exit(0);
+                    throw Utils.error("Incorrect operands.");
                 }
             }
         }
@@ -413,58 +852,145 @@ public class Repo implements Serializable {
      * and the changed FILENAME.
      */
     private void checkouthelper(String commitid, String filename) {
-        Commit commit = Utils.readObject(Utils.join(COMMIT_FOLDER,
-                commitid), Commit.class);
+        Commit commit = Commit.fromFile(commitid);
         if (!commit.blobs().containsKey(filename)) {
-            System.out.println("File does not exist in that commit.");
-            System.exit(0);
+            throw Utils.error("File does not exist in that commit.");
         } else {
-            Utils.writeContents(Utils.join(Main.CURR_FOLDER, filename),
-                    (Object) commit.blobs().get(filename).content());
+            String hash = commit.blobs().get(filename);
+            writeworking(filename, hash);
+            if (hash.equals(_currblobs.get(filename))) {
+                recordstat(filename);
+            } else {
+                _stats.remove(filename);
+            }
         }
     }
 
+    /**Write the content of the blob with HASH to the working file NAME,
+     * creating its directory if needed. The content is streamed, so large
+     * files are never held in memory.*/
+    private void writeworking(String name, String hash) {
+        File file = Utils.join(Main.CURR_FOLDER, name);
+        file.getParentFile().mkdirs();
+        Blob.checkout(hash, file);
+    }
+
     /**Helper function for checkout branch given ARGS.*/
     private void checkoutbranch(String[] args) {
         if (!_branches.contains(args[1])) {
-            System.out.println("No such branch exists.");
-            System.exit(0);
+            throw Utils.error("No such branch exists.");
         }
         if (_currbranch.equals(args[1])) {
-            System.out.println("No need to checkout"
+            throw Utils.error("No need to checkout"
                     + " the current branch.");
-            System.exit(0);
         }
 
 
-        String head = Utils.readContentsAsString(Utils.join(BRANCH_FOLDER,
-                        args[1]));
-        Commit headcommit = Utils.readObject(Utils.join(COMMIT_FOLDER,
-                head), Commit.class);
-        untrackcheck(headcommit);
-        for (String filename : _currblobs.keySet()) {
-            Utils.join(Main.CURR_FOLDER, filename).delete();
-        }
-        _currblobs = headcommit.blobs();
+        String head = readref(args[1]);
+        Commit headcommit = Commit.fromFile(head);
+        switchto(headcommit);
         _currcommit = headcommit.hashcode();
-        for (String filename : _currblobs.keySet()) {
-            Utils.writeContents(Utils.join(Main.CURR_FOLDER, filename),
-                    (Object) _currblobs.get(filename).content());
-        }
         _currbranch = args[1];
         _stage.clear();
     }
 
+    /**Make the working files and the tracked blobs those of COMMIT.
+     * Only the files whose blobs differ between the current commit, with
+     * the staged and removed files, and COMMIT are deleted or written,
+     * found by comparing the trees of the two commits. Tracked files
+     * whose blobs are the same but that were modified since are
+     * rewritten too, found from their stat data. Fails, changing
+     * nothing, if a file COMMIT tracks is untracked here, or is kept
+     * from being written by an untracked file.*/
+    private void switchto(Commit commit) {
+        HashMap<String, String> target = commit.blobs();
+        HashMap<String, String[]> changes = new HashMap<>();
+        Tree.diff(Commit.fromFile(_currcommit).tree(), commit.tree(), "",
+                changes);
+        Set<String> paths = new TreeSet<>(changes.keySet());
+        paths.addAll(_stage);
+        paths.addAll(_remove);
+        Set<String> deleted = new TreeSet<>();
+        for (String path : paths) {
+            if (!target.containsKey(path) && _currblobs.containsKey(path)) {
+                deleted.add(path);
+            }
+        }
+        for (String path : paths) {
+            if (!_currblobs.containsKey(path) && target.containsKey(path)
+                    && inway(path, deleted)) {
+                throw Utils.error("There is an untracked"
+                        + " file in the way; delete it"
+                        + " or add it first.");
+            }
+        }
+        List<String> kept = new ArrayList<>();
+        for (String path : target.keySet()) {
+            if (!paths.contains(path)) {
+                kept.add(path);
+            }
+        }
+        HashMap<String, String> working = workinghashes(kept);
+        HashMap<String, String> written = new HashMap<>();
+        for (String path : kept) {
+            if (!target.get(path).equals(working.get(path))) {
+                written.put(path, target.get(path));
+            }
+        }
+        for (String path : paths) {
+            String current = _currblobs.get(path);
+            String wanted = target.get(path);
+            if (wanted != null && (!wanted.equals(current)
+                       || !wanted.equals(workinghash(path)))) {
+                written.put(path, wanted);
+            }
+        }
+        Set<String> replaced = new HashSet<>(written.keySet());
+        replaced.addAll(deleted);
+        WorkTree.checkout(Main.CURR_FOLDER, written, saveworking(replaced),
+                deleted);
+        for (String path : deleted) {
+            _stats.remove(path);
+        }
+        _currblobs = target;
+        for (String path : written.keySet()) {
+            recordstat(path);
+        }
+    }
+
+    /**Return true if writing the working file PATH would replace a file
+     * that is not among the tracked files DELETED: a file at PATH, a file
+     * below a directory at PATH, or a file at one of its directories.*/
+    private static boolean inway(String path, Set<String> deleted) {
+        File file = Utils.join(Main.CURR_FOLDER, path);
+        if (file.isDirectory()) {
+            for (String name : WorkTree.files(file)) {
+                if (!deleted.contains(path + "/" + name)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        for (int slash = path.indexOf('/'); slash > 0;
+             slash = path.indexOf('/', slash + 1)) {
+            String dir = path.substring(0, slash);
+            if (Utils.join(Main.CURR_FOLDER, dir).isFile()
+                    && !deleted.contains(dir)) {
+                return true;
+            }
+        }
+        return file.isFile();
+    }
+
     /**Helper function to do untrackcheck given the COMMIT.*/
     private void untrackcheck(Commit commit) {
 
-        for (String file : Utils.plainFilenamesIn(Main.CURR_FOLDER)) {
+        for (String file : WorkTree.files(Main.CURR_FOLDER)) {
             if (!_stage.contains(file) && !_currblobs.containsKey(file)
-                    && commit.blobnames().contains(file)) {
-                System.out.println("There is an untracked"
+                    && commit.blobs().containsKey(file)) {
+                throw Utils.error("There is an untracked"
                         + " file in the way; delete it"
                         + " or add it first.");
-                System.exit(0);
             }
         }
     }
@@ -472,18 +998,14 @@ public class Repo implements Serializable {
     /**Command branch given the ARGS from input.*/
     private void branch(String[] args) {
         if (args.length != 2) {
-            System.out.println("Incorrect operands.");
-            System.exit(0);
+            throw Utils.error("Incorrect operands.");
         } else {
             if (_branches.contains(args[1])) {
-                System.out.println("A branch with "
+                throw Utils.error("A branch with "
                         + "that name already exists.");
-                System.exit(0);
             } else {
                 _branches.add(args[1]);
-                _splitid.put(args[1], _currcommit);
-                Utils.writeContents(Utils.join(BRANCH_FOLDER, args[1]),
-                        _currcommit);
+                writeref(args[1], _currcommit);
             }
         }
     }
@@ -491,103 +1013,252 @@ public class Repo implements Serializable {
     /**Command rm-branch given the ARGS.*/
     private void rmbranch(String[] args) {
         if (args.length != 2) {
-            System.out.println("Incorrect operands.");
-            System.exit(0);
+            throw Utils.error("Incorrect operands.");
         } else {
             if (!_branches.contains(args[1])) {
-                System.out.println("A branch"
+                throw Utils.error("A branch"
                         + " with that name does not exist.");
-                System.exit(0);
             } else {
                 if (_currbranch.equals(args[1])) {
-                    System.out.println("Cannot remove"
+                    throw Utils.error("Cannot remove"
                             + " the current branch.");
-                    System.exit(0);
                 } else {
                     _branches.remove(args[1]);
-                    Utils.join(BRANCH_FOLDER, args[1]).delete();
+                    writeref(args[1], null);
                 }
             }
         }
     }
 
+    /**Command config given the ARGS. Print the value of a setting, or
+     * change it when a new value is given.*/
+    private void config(String[] args) {
+        if (args.length == 2) {
+            String value = Config.get(args[1]);
+            if (value != null) {
+                System.out.println(value);
+            }
+        } else if (args.length == 3) {
+            Config.set(args[1], args[2]);
+        } else {
+            throw Utils.error("Incorrect operands.");
+        }
+    }
+
+    /**Command repack given the ARGS. Fold the loose objects into packs,
+     * telling the store which file each blob belongs to so that versions
+     * of one file can be stored as deltas of each other.*/
+    private void repack(String[] args) {
+        if (args.length != 1) {
+            throw Utils.error("Incorrect operands.");
+        }
+        HashMap<String, String> names = new HashMap<>();
+        Set<String> seen = new HashSet<>();
+        for (String commithash : commits()) {
+            String tree = Commit.fromFile(commithash).tree();
+            if (tree != null) {
+                Tree.names(tree, "", names, seen);
+            }
+        }
+        ObjectStore.repack(names);
+    }
+
     /**Command reset given the ARGS.*/
     private void reset(String[] args) {
         if (args.length != 2) {
-            System.out.println("Incorrect operands.");
-            System.exit(0);
+            throw Utils.error("Incorrect operands.");
+        }
+        args[1] = resolvecommit(args[1]);
+        if (!_untracked.isEmpty()) {
+            throw Utils.error("There is an untracked file"
+                    + " in the way; delete it or add it first.");
+        }
+        Commit headcommit = Commit.fromFile(args[1]);
+        switchto(headcommit);
+        writeref(_currbranch, headcommit.hashcode());
+        _currcommit = args[1];
+        _stage.clear();
+    }
+
+    /**Command merge-base given ARGS: print the split point of the two
+     * commits or branches named.*/
+    private void mergebase(String[] args) {
+        if (args.length != 3) {
+            throw Utils.error("Incorrect operands.");
         }
-        for (String commitid: _commits) {
-            if (commitid.substring(0,
-                    args[1].length()).equals(args[1])) {
-                args[1] = commitid;
+        String split = findsplitpoint(resolvehead(args[1]),
+                                      resolvehead(args[2]));
+        if (!split.equals("")) {
+            System.out.println(split);
+        }
+    }
+
+    /**Return the hashcode of the head of the branch NAME, or of the
+     * commit whose id NAME abbreviates if there is no such branch.*/
+    private String resolvehead(String name) {
+        return _branches.contains(name)
+            ? readref(name)
+            : resolvecommit(name);
+    }
+
+    /**Command diff given ARGS: print, as unified diffs, the changes of
+     * the working files against the stage, with --staged those of the
+     * stage against the current commit, or with two commits those of
+     * the second against the first. Only the files whose blob hashes
+     * differ are read, and each diff is printed as it is found.*/
+    private void diff(String[] args) {
+        TreeMap<String, String[]> changes = new TreeMap<>();
+        boolean working = args.length == 1;
+        if (working) {
+            TreeSet<String> tracked = new TreeSet<>(_currblobs.keySet());
+            tracked.removeAll(_remove);
+            HashMap<String, String> hashes = workinghashes(tracked);
+            for (String name : tracked) {
+                String hash = hashes.get(name);
+                if (!_currblobs.get(name).equals(hash)) {
+                    changes.put(name,
+                                new String[] {_currblobs.get(name), hash});
+                }
             }
+        } else if (args.length == 2 && args[1].equals("--staged")) {
+            String tree = Commit.fromFile(_currcommit).tree();
+            TreeSet<String> names = new TreeSet<>(_stage);
+            names.addAll(_remove);
+            for (String name : names) {
+                String hash = _remove.contains(name) ? null
+                    : _currblobs.get(name);
+                changes.put(name,
+                            new String[] {Tree.find(tree, name), hash});
+            }
+        } else if (args.length == 3) {
+            Commit from = Commit.fromFile(resolvehead(args[1]));
+            Commit to = Commit.fromFile(resolvehead(args[2]));
+            Tree.diff(from.tree(), to.tree(), "", changes);
+        } else {
+            throw Utils.error("Incorrect operands.");
         }
-        if (!_commits.contains(args[1])) {
-            System.out.println("No commit with that id exists.");
-            System.exit(0);
+        PrintWriter out = new PrintWriter(new BufferedWriter(
+                new OutputStreamWriter(System.out), LOG_BUFFER_SIZE));
+        for (Map.Entry<String, String[]> change : changes.entrySet()) {
+            String name = change.getKey();
+            String[] hashes = change.getValue();
+            byte[] old = hashes[0] == null ? null : Blob.content(hashes[0]);
+            byte[] now = hashes[1] == null ? null
+                : working ? Utils.readContents(Utils.join(Main.CURR_FOLDER,
+                                                          name))
+                : Blob.content(hashes[1]);
+            printdiff(name, old, now, out);
         }
-        if (!_untracked.isEmpty()) {
-            System.out.println("There is an untracked file"
-                    + " in the way; delete it or add it first.");
-            System.exit(0);
+        out.flush();
+    }
+
+    /**Print to OUT the unified diff of the file NAME from the content
+     * OLD to the content NOW, either of which is null where the file is
+     * missing.*/
+    private static void printdiff(String name, byte[] old, byte[] now,
+                                  PrintWriter out) {
+        String aname = old == null ? "/dev/null" : "a/" + name;
+        String bname = now == null ? "/dev/null" : "b/" + name;
+        byte[] empty = new byte[0];
+        old = old == null ? empty : old;
+        now = now == null ? empty : now;
+        if (Diff.binary(old) || Diff.binary(now)) {
+            out.print("Binary files " + aname + " and " + bname
+                      + " differ\n");
+        } else {
+            new Diff(Diff.lines(old), Diff.lines(now))
+                .print(aname, bname, out);
         }
-        Commit headcommit = Utils.readObject(Utils.join(COMMIT_FOLDER,
-                args[1]), Commit.class);
-        untrackcheck(headcommit);
-        for (String filename : _currblobs.keySet()) {
-            Utils.join(Main.CURR_FOLDER, filename).delete();
+    }
+
+    /**Return the hashcode of the commit whose id starts with ID. Ids
+     * are looked up in the commit index, and in the commits made since
+     * it was written, which is rewritten once too many of them are in
+     * the commit list. Only those are indexed, so that the index never
+     * holds a commit a killed batch did not save.*/
+    private String resolvecommit(String id) {
+        List<String> matches = new ArrayList<>();
+        if (id.matches("[0-9a-f]{1," + Utils.UID_LENGTH + "}")) {
+            CommitIndex index = CommitIndex.read();
+            matches.addAll(index.find(id, 2));
+            List<String> unindexed = unindexed(index.count());
+            for (String commitid : unindexed) {
+                if (commitid.startsWith(id) && !matches.contains(commitid)) {
+                    matches.add(commitid);
+                }
+            }
+            if (unindexed.size() - _newcommits.size()
+                    > CommitIndex.MAX_UNINDEXED) {
+                CommitIndex.write(savedcommits());
+            }
         }
-        _currblobs = headcommit.blobs();
-        for (String filename : _currblobs.keySet()) {
-            Utils.writeContents(Utils.join(Main.CURR_FOLDER, filename),
-                    (Object) _currblobs.get(filename).content());
+        if (matches.isEmpty()) {
+            throw Utils.error("No commit with that id exists.");
+        } else if (matches.size() > 1) {
+            throw Utils.error("Commit id %s is ambiguous.", id);
         }
-        Utils.writeContents(Utils.join(BRANCH_FOLDER, _currbranch),
-                headcommit.hashcode());
-        _currcommit = args[1];
-        _stage.clear();
+        return matches.get(0);
+    }
+
+    /**Return the hashcodes of the commits after the first COUNT in the
+     * commit list, reading only that part of it.*/
+    private List<String> unindexed(int count) {
+        if (_commits != null) {
+            return new ArrayList<>(_commits.subList(
+                    Math.min(count, _commits.size()), _commits.size()));
+        }
+        List<String> result = new ArrayList<>();
+        if (COMMITS_FILE.exists()) {
+            try (RandomAccessFile in = new RandomAccessFile(COMMITS_FILE,
+                    "r")) {
+                long start = (long) count * Encoding.HASH_LENGTH;
+                byte[] tail = new byte[(int) Math.max(0,
+                        in.length() - start)];
+                in.seek(start);
+                in.readFully(tail);
+                for (int i = 0; i + Encoding.HASH_LENGTH <= tail.length;
+                     i += Encoding.HASH_LENGTH) {
+                    result.add(Utils.toHex(Arrays.copyOfRange(tail, i,
+                            i + Encoding.HASH_LENGTH)));
+                }
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+        result.addAll(_newcommits);
+        return result;
     }
 
     /**Command merge given ARGS.*/
     private void merge(String[] args) {
         if (args.length != 2) {
-            System.out.println("Incorrect operands.");
-            System.exit(0);
+            throw Utils.error("Incorrect operands.");
         }
         if (!(_stage.isEmpty() && _remove.isEmpty())) {
-            System.out.println("You have uncommitted changes.");
-            System.exit(0);
+            throw Utils.error("You have uncommitted changes.");
         }
         if (!_branches.contains(args[1])) {
-            System.out.println("A branch with that "
+            throw Utils.error("A branch with that "
                     + "name does not exist.");
-            System.exit(0);
         }
         if (_currbranch.equals(args[1])) {
-            System.out.println("Cannot merge a branch"
+            throw Utils.error("Cannot merge a branch"
                     + " with itself.");
-            System.exit(0);
         }
-        String givencommitstr = Utils.readContentsAsString
-                (Utils.join(BRANCH_FOLDER, args[1]));
+        String givencommitstr = readref(args[1]);
         String splitcommithash = findsplitpoint(_currcommit, givencommitstr);
         if (splitcommithash.equals(givencommitstr)) {
-            System.out.println("Given branch is an ancestor "
+            throw Utils.error("Given branch is an ancestor "
                     + "of the current branch.");
-            System.exit(0);
-        }
-        Commit currcommit = Utils.readObject(Utils.join(
-                COMMIT_FOLDER, _currcommit), Commit.class);
-        Commit targetcommit = Utils.readObject(Utils.
-                join(COMMIT_FOLDER, givencommitstr), Commit.class);
-        Commit splitcommit = Utils.readObject(Utils.
-                join(COMMIT_FOLDER, splitcommithash), Commit.class);
+        }
+        Commit currcommit = Commit.fromFile(_currcommit);
+        Commit targetcommit = Commit.fromFile(givencommitstr);
+        Commit splitcommit = Commit.fromFile(splitcommithash);
         untrackcheck(targetcommit);
         if (splitcommithash.equals(_currcommit)) {
             mergefastforward(targetcommit);
             System.out.println("Current branch fast-forwarded.");
-            System.exit(0);
+            return;
         }
 
         Boolean conflicted = mergehandle(currcommit, targetcommit, splitcommit);
@@ -611,8 +1282,7 @@ public class Repo implements Serializable {
         resetcommit[0] = "reset";
         resetcommit[1] = targetcommit.hashcode();
         reset(resetcommit);
-        Utils.writeContents(Utils.join(BRANCH_FOLDER,
-                _currbranch), _currcommit);
+        writeref(_currbranch, _currcommit);
     }
 
     /**Fields for merge.*/
@@ -633,7 +1303,9 @@ public class Repo implements Serializable {
     /**Merge handle to categorize the files into multiple categories.
      * CURRCOMMIT is the current commit, TARGETCOMMIT is the target commit.
      * SPLITCOMMIT the the commit of the split point, return the
-     * mark the conflict.*/
+     * mark the conflict. Only the files that changed on either side since
+     * the split point are looked at, found by comparing the trees of the
+     * commits, which skips every directory left alone on both sides.*/
     private boolean mergehandle(Commit currcommit, Commit targetcommit,
                                 Commit splitcommit) {
         stagelist = new ArrayList<>();
@@ -641,92 +1313,62 @@ public class Repo implements Serializable {
         removelist = new ArrayList<>();
         untrackedlist = new ArrayList<>();
         conflictlist = new ArrayList<>();
-        commonfilehandle(currcommit, targetcommit, splitcommit);
-        List<String> currnotinsplit = currcommit.blobnames();
-        currnotinsplit.removeAll(splitcommit.blobnames());
-        List<String> targetnotinsplit = targetcommit.blobnames();
-        targetnotinsplit.removeAll(splitcommit.blobnames());
-        Set<String> currtargetcombo = new HashSet<>(currnotinsplit);
-        currtargetcombo.addAll(targetnotinsplit);
-        for (String file : currtargetcombo) {
-            if (currnotinsplit.contains(file)
-                    && !targetnotinsplit.contains(file)) {
-                unchangelist.add(file);
-            } else {
-                if (targetnotinsplit.contains(file)
-                        && !currnotinsplit.contains(file)) {
-                    stagelist.add(file);
-                } else {
-                    if (currcommit.blobs().get(file).hashcode().equals
-                            (targetcommit.blobs().get(file).hashcode())) {
-                        unchangelist.add(file);
-                    } else {
-                        conflictlist.add(file);
-                    }
-                }
-            }
+        HashMap<String, String[]> currchanges = new HashMap<>();
+        Tree.diff(splitcommit.tree(), currcommit.tree(), "", currchanges);
+        HashMap<String, String[]> targetchanges = new HashMap<>();
+        Tree.diff(splitcommit.tree(), targetcommit.tree(), "",
+                targetchanges);
+        Set<String> files = new TreeSet<>(currchanges.keySet());
+        files.addAll(targetchanges.keySet());
+        for (String file : files) {
+            String[] curr = currchanges.get(file);
+            String[] target = targetchanges.get(file);
+            String splithash = curr != null ? curr[0] : target[0];
+            filehandle(file, splithash, curr != null ? curr[1] : splithash,
+                    target != null ? target[1] : splithash);
         }
         mergeforstage(targetcommit);
         mergeforremove();
-        mergeforconflict(currcommit, targetcommit);
-        return !conflictlist.isEmpty();
+        return mergeforconflict(splitcommit, currcommit, targetcommit);
     }
-    /**Common file merge handle to categorize the files into
-     * multiple categories.
-     * CURRCOMMIT is the current commit, TARGETCOMMIT is the target commit.
-     * SPLITCOMMIT the the commit of the split point, return the
-     * mark the conflict.*/
-    private void commonfilehandle(Commit currcommit, Commit targetcommit,
-                                  Commit splitcommit) {
-        for (String file : splitcommit.blobnames()) {
-            String splithash = splitcommit.blobs().get(file).hashcode();
-            String currhash;
-            if (currcommit.blobs().get(file) != null) {
-                currhash = currcommit.blobs().get(file).hashcode();
+
+    /**Categorize FILE, whose blob hashes are SPLITHASH at the split
+     * point, CURRHASH in the current commit and TARGETHASH in the target
+     * commit, each null if the file is missing there.*/
+    private void filehandle(String file, String splithash, String currhash,
+                            String targethash) {
+        if (currhash == null && targethash == null) {
+            return;
+        }
+        if (splithash == null) {
+            if (targethash == null || targethash.equals(currhash)) {
+                unchangelist.add(file);
+            } else if (currhash == null) {
+                stagelist.add(file);
             } else {
-                currhash = null;
+                conflictlist.add(file);
             }
-            String targethash;
-            if (targetcommit.blobs().get(file) != null) {
-                targethash = targetcommit.blobs().get(file).hashcode();
+        } else if (currhash != null && targethash != null) {
+            if (currhash.equals(splithash)
+                    && !targethash.equals(splithash)) {
+                stagelist.add(file);
+            } else if (targethash.equals(splithash)
+                    || currhash.equals(targethash)) {
+                unchangelist.add(file);
             } else {
-                targethash = null;
-            }
-            if (currhash != null && targethash != null) {
-                if (currhash.equals(splithash)
-                        && !targethash.equals(splithash)) {
-                    stagelist.add(file);
-                } else {
-                    if (targethash.equals(splithash)
-                            && !currhash.equals(splithash)) {
-                        unchangelist.add(file);
-                    } else {
-                        if (currhash.equals(targethash)) {
-                            unchangelist.add(file);
-                        } else {
-                            conflictlist.add(file);
-                        }
-                    }
-                }
-
+                conflictlist.add(file);
             }
-            if (targethash == null && currhash != null) {
-                if (currhash.equals(splithash)) {
-                    removelist.add(file);
-                    untrackedlist.add(file);
-                } else {
-                    conflictlist.add(file);
-                }
-
-            }
-            if (currhash == null && targethash != null) {
-                if (targethash.equals(splithash)) {
-                    unchangelist.add(file);
-                } else {
-                    conflictlist.add(file);
-                }
-
+        } else if (targethash == null) {
+            if (currhash.equals(splithash)) {
+                removelist.add(file);
+                untrackedlist.add(file);
+            } else {
+                conflictlist.add(file);
             }
+        } else if (targethash.equals(splithash)) {
+            unchangelist.add(file);
+        } else {
+            conflictlist.add(file);
         }
     }
     /**Handle the files need to be checkout and staged.
@@ -734,18 +1376,21 @@ public class Repo implements Serializable {
      * to the stage, CURRCOMMIT is the current commit,
      * TARGETCOMMIT is the target commit.*/
     private void mergeforstage(Commit targetcommit) {
+        if (stagelist.isEmpty()) {
+            return;
+        }
+        HashMap<String, String> files = new HashMap<>();
         for (String file : stagelist) {
-            String[] checkoutargs = new String[4];
-            checkoutargs[0] = "checkout";
-            checkoutargs[1] = targetcommit.hashcode();
-            checkoutargs[2] = "--";
-            checkoutargs[3] = file;
-            checkout(checkoutargs);
-            String[] addargs = new String[2];
-            addargs[0] = "add";
-            addargs[1] = file;
-            add(addargs);
+            files.put(file, targetcommit.blobs().get(file));
         }
+        WorkTree.checkout(Main.CURR_FOLDER, files,
+                saveworking(files.keySet()), Collections.emptyList());
+        String[] addargs = new String[stagelist.size() + 1];
+        addargs[0] = "add";
+        for (int i = 0; i < stagelist.size(); i += 1) {
+            addargs[i + 1] = stagelist.get(i);
+        }
+        add(addargs);
     }
 
     /**Handle all files that need to be removed.
@@ -760,136 +1405,44 @@ public class Repo implements Serializable {
         }
     }
 
-    /**Handle all files that are in conflict.
-     * CONFLICTLIST is the arraylist of the files in conflict
-     * between the these two commit CURRCOMMIT and TARGETCOMMIT.*/
-    private void mergeforconflict(Commit currcommit,
-                                  Commit targetcommit) {
-
+    /**Handle all files that are in conflict: the files changed
+     * differently in the current commit CURRCOMMIT and the target commit
+     * TARGETCOMMIT since the split point SPLITCOMMIT. The changes of both
+     * sides are merged line by line against the split point's content,
+     * and only the lines both changed differently are written between
+     * conflict markers. A binary file, or a file deleted on one side,
+     * is a whole-file conflict. Return true if any conflict remains.*/
+    private boolean mergeforconflict(Commit splitcommit, Commit currcommit,
+                                     Commit targetcommit) {
+        boolean conflicted = false;
         for (String file : conflictlist) {
-            String currcontentstr;
-            if (currcommit.blobs().get(file) != null) {
-                currcontentstr = currcommit.blobs().
-                        get(file).contentstr();
-            } else {
-                currcontentstr = "";
-            }
-
-            String targetcontentstr;
-
-            if (targetcommit.blobs().get(file) != null) {
-                targetcontentstr = targetcommit.blobs().
-                        get(file).contentstr();
-            } else {
-                targetcontentstr = "";
-            }
-
-            String newcontent = "<<<<<<< HEAD\n"
-                    + currcontentstr + "=======\n"
-                    + targetcontentstr
-                    + ">>>>>>>\n";
+            StringBuilder merged = new StringBuilder();
+            conflicted |= Diff.merge(mergecontent(splitcommit, file),
+                    mergecontent(currcommit, file),
+                    mergecontent(targetcommit, file), merged) > 0;
             Utils.writeContents(Utils.join(Main.CURR_FOLDER, file),
-                    newcontent);
+                    merged.toString().getBytes(StandardCharsets.ISO_8859_1));
             String[] addargs = new String[2];
             addargs[0] = "add";
             addargs[1] = file;
             add(addargs);
         }
+        return conflicted;
+    }
+
+    /**Return the content of FILE in COMMIT, or null if it is not
+     * there.*/
+    private static byte[] mergecontent(Commit commit, String file) {
+        String hash = commit.blobs().get(file);
+        return hash == null ? null : Blob.content(hash);
     }
 
     /**Helper function to find split points for two commits.
      * FCOMMIT is the first commit, SCOMMIT is the second commit,
      * return the commit for split point.*/
     private String findsplitpoint(String fcommit, String scommit) {
-        if (fcommit.equals(scommit)) {
-            return fcommit;
-        }
-        HashMap<String, Integer> fcommitchain = getcommitchain(fcommit,
-                new ArrayList<String>(),
-                        new HashMap<String, Integer>());
-        HashMap<String, Integer> scommitchain = getcommitchain(
-                scommit, new ArrayList<String>(),
-                new HashMap<String, Integer>());
-        HashSet<String> allcommits = new HashSet<>(fcommitchain.keySet());
-        allcommits.addAll(scommitchain.keySet());
-
-        int minilevel = MAXVALUE;
-        String split = "";
-        for (String commit : allcommits) {
-            if (fcommitchain.containsKey(commit)
-                    && scommitchain.containsKey(commit)) {
-                int thislevel = fcommitchain.get(commit)
-                        + scommitchain.get(commit);
-                if (thislevel < minilevel) {
-                    minilevel = thislevel;
-                    split = commit;
-                }
-            }
-        }
-        return split;
-    }
-
-
-    /**Get the chain of the commit from the input to the initial commit.
-     * The COMMITHASH is the hashcode for the commit,
-     * CHAIN is the commit history, return commit chain, LEVELS is the
-     * commit history combined with level counts.*/
-    private HashMap<String, Integer> getcommitchain(String commithash,
-                                              Collection<String> chain,
-                                              HashMap<String, Integer> levels) {
-        Deque<String> parents = new LinkedList<>();
-        Deque<Integer> levelchain = new LinkedList<>();
-        int level = 0;
-        parents.addLast(commithash);
-        levelchain.addLast(level);
-        while (!parents.isEmpty()) {
-            String thiscommit = parents.removeFirst();
-            int thislevel = levelchain.removeFirst();
-
-            Commit commit = Utils.readObject(Utils.join(COMMIT_FOLDER,
-                    thiscommit), Commit.class);
-            if (!chain.contains(thiscommit)) {
-                chain.add(thiscommit);
-                if (levels.get(thiscommit) != null
-                        && levels.get(thiscommit) < thislevel) {
-                    levels.put(thiscommit, thislevel);
-                } else {
-                    levels.put(thiscommit, thislevel);
-                }
-            }
-            if (!commit.parentid().equals("")) {
-                parents.addLast(commit.parentid());
-                levelchain.addLast(thislevel + 1);
-            }
-            if (commit.merge()) {
-                parents.addLast(commit.mergeid());
-                levelchain.addLast(thislevel + 1);
-            }
-        }
-        return levels;
-    }
-
-    /**Get the chain of the commit from the input to the initial commit
-     * in a recursive way. The COMMITHASH is the hashcode for
-     * the commit, CHAIN is the commit history, return the commit chain.*/
-    private Collection<String> recurgetcommitchain(String commithash,
-                                                   Collection<String> chain) {
-        if (!_commits.contains(commithash)) {
-            return chain;
-        } else {
-            Commit commit = Utils.readObject(Utils.join(COMMIT_FOLDER,
-                    commithash), Commit.class);
-            chain.add(commithash);
-            Collection<String> chainpath = recurgetcommitchain(
-                    commit.parentid(), chain);
-            if (commit.merge()) {
-                Collection<String> chainmergepath =
-                        recurgetcommitchain(commit.mergeid(), chain);
-                if (chainmergepath.size() <= chainpath.size()) {
-                    return chainmergepath;
-                }
-            }
-            return chainpath;
-        }
+        CommitGraph graph = graph();
+        int split = graph.mergebase(graph.row(fcommit), graph.row(scommit));
+        return split == CommitGraph.NONE ? "" : graph.hash(split);
     }
 }
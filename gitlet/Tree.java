@@ -0,0 +1,223 @@
+package gitlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/** A directory of a commit: the names of its files with the hashes of
+ *  their blobs, and the names of its subdirectories with the hashes of
+ *  their trees. A tree is stored under the hash of its encoding, which
+ *  covers the hashes of everything below it, so two commits share every
+ *  directory in which nothing changed, and walks comparing two trees
+ *  skip the subtrees whose hashes are equal. A commit points to the tree
+ *  of the working directory. Empty directories are not recorded.
+ *  @author Qindan Zhu
+ */
+class Tree {
+
+    /** Magic number of an encoded tree.*/
+    static final int MAGIC = 0x47545245;
+    /** Format version of an encoded tree.*/
+    static final int VERSION = 1;
+    /** Separator of the directories in a file name.*/
+    static final char SEPARATOR = '/';
+
+    /** Blob hashes of the files of the directory, keyed by name.*/
+    private final TreeMap<String, String> _files = new TreeMap<>();
+    /** Tree hashes of the subdirectories, keyed by name.*/
+    private final TreeMap<String, String> _dirs = new TreeMap<>();
+
+    /** Return the tree with HASH from the object store, or the empty tree
+     *  if HASH is null.*/
+    static Tree read(String hash) {
+        Tree tree = new Tree();
+        if (hash == null) {
+            return tree;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(ObjectStore.read(hash)))) {
+            Encoding.readheader(in, MAGIC, VERSION);
+            int size = Encoding.readlength(in);
+            for (int i = 0; i < size; i += 1) {
+                String name = Encoding.readstring(in);
+                boolean dir = in.readBoolean();
+                String entry = Encoding.readhash(in);
+                (dir ? tree._dirs : tree._files).put(name, entry);
+            }
+            return tree;
+        } catch (IOException excp) {
+            throw Utils.error("Corrupt tree %s.", hash);
+        }
+    }
+
+    /** Store the trees of the files named in BLOBS, which maps file names
+     *  to blob hashes, and return the hash of the top one, or null if
+     *  BLOBS is empty.*/
+    static String write(Map<String, String> blobs) {
+        return update(null, blobs);
+    }
+
+    /** Store the trees of the tree with hash ROOT, or of the empty tree if
+     *  ROOT is null, changed by CHANGES, which maps file names to their
+     *  new blob hashes or to null for removed files. Return the hash of
+     *  the new top tree, or null if it is empty. Only the directories
+     *  holding a change are read and written again; the hashes of the
+     *  others are kept.*/
+    static String update(String root, Map<String, String> changes) {
+        if (changes.isEmpty()) {
+            return root;
+        }
+        Tree tree = read(root);
+        HashMap<String, Map<String, String>> below = new HashMap<>();
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            String name = change.getKey();
+            int slash = name.indexOf(SEPARATOR);
+            if (slash < 0) {
+                if (change.getValue() == null) {
+                    tree._files.remove(name);
+                } else {
+                    tree._files.put(name, change.getValue());
+                }
+            } else {
+                below.computeIfAbsent(name.substring(0, slash),
+                    d -> new HashMap<>()).put(name.substring(slash + 1),
+                            change.getValue());
+            }
+        }
+        for (Map.Entry<String, Map<String, String>> dir : below.entrySet()) {
+            String hash = update(tree._dirs.get(dir.getKey()),
+                    dir.getValue());
+            if (hash == null) {
+                tree._dirs.remove(dir.getKey());
+            } else {
+                tree._dirs.put(dir.getKey(), hash);
+            }
+        }
+        return tree.save();
+    }
+
+    /** Return the blob hash of the file NAME below the tree with HASH, or
+     *  null if there is no such file. Only the trees of the directories
+     *  holding it are read.*/
+    static String find(String hash, String name) {
+        Tree tree = read(hash);
+        int slash = name.indexOf(SEPARATOR);
+        while (slash >= 0) {
+            String dir = tree._dirs.get(name.substring(0, slash));
+            if (dir == null) {
+                return null;
+            }
+            tree = read(dir);
+            name = name.substring(slash + 1);
+            slash = name.indexOf(SEPARATOR);
+        }
+        return tree._files.get(name);
+    }
+
+    /** Add the files below the tree with HASH to BLOBS, which maps file
+     *  names to blob hashes, prefixing their names with PREFIX.*/
+    static void flatten(String hash, String prefix, Map<String, String> blobs) {
+        Tree tree = read(hash);
+        for (Map.Entry<String, String> file : tree._files.entrySet()) {
+            blobs.put(prefix + file.getKey(), file.getValue());
+        }
+        for (Map.Entry<String, String> dir : tree._dirs.entrySet()) {
+            flatten(dir.getValue(), prefix + dir.getKey() + SEPARATOR, blobs);
+        }
+    }
+
+    /** Add to NAMES a name, prefixed with PREFIX, under which each blob
+     *  below the tree with HASH appears, skipping the trees in SEEN and
+     *  adding the others to it.*/
+    static void names(String hash, String prefix, Map<String, String> names,
+                      Set<String> seen) {
+        if (!seen.add(hash)) {
+            return;
+        }
+        Tree tree = read(hash);
+        for (Map.Entry<String, String> file : tree._files.entrySet()) {
+            names.putIfAbsent(file.getValue(), prefix + file.getKey());
+        }
+        for (Map.Entry<String, String> dir : tree._dirs.entrySet()) {
+            names(dir.getValue(), prefix + dir.getKey() + SEPARATOR, names,
+                  seen);
+        }
+    }
+
+    /** Add to CHANGES the files that differ between the trees with hashes
+     *  A and B, either of which may be null for the empty tree, with
+     *  their names prefixed by PREFIX. Each maps to its blob hashes in A
+     *  and B, null where it is missing. Subtrees with equal hashes are
+     *  not read.*/
+    static void diff(String a, String b, String prefix,
+                     Map<String, String[]> changes) {
+        if (a == null ? b == null : a.equals(b)) {
+            return;
+        }
+        Tree left = read(a);
+        Tree right = read(b);
+        Set<String> files = new TreeSet<>(left._files.keySet());
+        files.addAll(right._files.keySet());
+        for (String name : files) {
+            String old = left._files.get(name);
+            String now = right._files.get(name);
+            if (old == null || !old.equals(now)) {
+                changes.put(prefix + name, new String[] {old, now});
+            }
+        }
+        Set<String> dirs = new TreeSet<>(left._dirs.keySet());
+        dirs.addAll(right._dirs.keySet());
+        for (String name : dirs) {
+            diff(left._dirs.get(name), right._dirs.get(name),
+                 prefix + name + SEPARATOR, changes);
+        }
+    }
+
+    /** Store this tree unless it is empty or already present, and return
+     *  its hash, or null if it is empty.*/
+    private String save() {
+        if (_files.isEmpty() && _dirs.isEmpty()) {
+            return null;
+        }
+        byte[] data = encode();
+        String hash = Utils.sha1("tree", data);
+        ObjectStore.write(hash, ObjectStore.TREE, data);
+        return hash;
+    }
+
+    /** Return the encoded form of this tree, its entries sorted by name,
+     *  a file before a directory of the same name, so that equal trees
+     *  have equal encodings. A name may be both, as the index may hold a
+     *  file D and a file D/X, and both are kept.*/
+    private byte[] encode() {
+        TreeSet<String> names = new TreeSet<>(_files.keySet());
+        names.addAll(_dirs.keySet());
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            Encoding.writeheader(out, MAGIC, VERSION);
+            Encoding.writelength(out, _files.size() + _dirs.size());
+            for (String name : names) {
+                for (boolean dir : new boolean[] {false, true}) {
+                    String hash = (dir ? _dirs : _files).get(name);
+                    if (hash != null) {
+                        Encoding.writestring(out, name);
+                        out.writeBoolean(dir);
+                        Encoding.writehash(out, hash);
+                    }
+                }
+            }
+            out.close();
+            return bytes.toByteArray();
+        } catch (IOException excp) {
+            throw Utils.error("Internal error serializing tree.");
+        }
+    }
+}
@@ -4,6 +4,36 @@ import ucb.junit.textui;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
 /** The suite of all JUnit tests for the gitlet package.
  *  @author Qindan Zhu
  */
@@ -26,6 +56,1140 @@ public class UnitTest {
         assertNotNull(Main.RECORD);
     }
 
-}
+    /** Check that a delta rebuilds its target from its base.*/
+    @Test
+    public void deltaTest() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 2000; i += 1) {
+            text.append("line ").append(i).append('\n');
+        }
+        byte[] base = text.toString().getBytes(StandardCharsets.UTF_8);
+        text.insert(5000, "inserted text\n");
+        text.delete(12000, 12100);
+        byte[] target = text.toString().getBytes(StandardCharsets.UTF_8);
+        byte[] delta = Delta.create(base, target);
+        assertTrue(delta.length < target.length / 10);
+        assertArrayEquals(target, Delta.apply(base, delta));
+        byte[] empty = new byte[0];
+        assertArrayEquals(empty, Delta.apply(base,
+                Delta.create(base, empty)));
+        assertArrayEquals(target, Delta.apply(empty,
+                Delta.create(empty, target)));
+    }
+
+    /** Check that an insertion only moves the chunk boundaries near it.*/
+    @Test
+    public void chunkTest() {
+        byte[] base = new byte[2 << 20];
+        new Random(1).nextBytes(base);
+        byte[] edited = new byte[base.length + 1];
+        System.arraycopy(base, 0, edited, 0, 1 << 20);
+        System.arraycopy(base, 1 << 20, edited, (1 << 20) + 1, 1 << 20);
+        Set<String> chunks = chunkhashes(base);
+        Set<String> editedchunks = chunkhashes(edited);
+        assertTrue(chunks.size() > 8);
+        editedchunks.removeAll(chunks);
+        assertTrue(editedchunks.size() <= 2);
+    }
+
+    /** Check that each codec reads back what it wrote, both as a stream
+     *  and through transfer, that wrap marks data with the configured
+     *  codec, and that an unknown codec id is refused.*/
+    @Test
+    public void codecTest() {
+        inrepo(() -> {
+            try {
+                byte[] data = new byte[3 * Codec.BUFFER_SIZE + 5];
+                for (int i = 0; i < data.length; i += 1) {
+                    data[i] = (byte) (i % 7);
+                }
+                for (Codec codec : new Codec[] {Codec.NONE, Codec.DEFLATE}) {
+                    assertEquals(codec, Codec.forid(codec.id()));
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    try (OutputStream out = codec.compress(bytes)) {
+                        out.write(data);
+                    }
+                    byte[] stored = bytes.toByteArray();
+                    assertArrayEquals(data, codec.decompress(
+                            new ByteArrayInputStream(stored)).readAllBytes());
+                    ByteArrayOutputStream copy = new ByteArrayOutputStream();
+                    codec.transfer(ByteBuffer.wrap(stored),
+                            Channels.newChannel(copy));
+                    assertArrayEquals(data, copy.toByteArray());
+                }
+                assertEquals(Codec.DEFLATE, Codec.configured());
+                Config.set(Codec.LEVEL_KEY, "0");
+                assertEquals(Codec.NONE, Codec.configured());
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                try (OutputStream out = Codec.wrap(bytes)) {
+                    out.write(data);
+                }
+                byte[] wrapped = bytes.toByteArray();
+                assertEquals(Codec.NONE.id(), wrapped[0]);
+                assertArrayEquals(data, Codec.unwrap(
+                        new ByteArrayInputStream(wrapped)).readAllBytes());
+                wrapped[0] = 7;
+                try {
+                    Codec.unwrap(new ByteArrayInputStream(wrapped));
+                    fail();
+                } catch (GitletException excp) {
+                    assertEquals("Unknown codec 7.", excp.getMessage());
+                }
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        });
+    }
+
+    /** Check that records read back as written, and that a header of
+     *  another kind or of a newer format is refused.*/
+    @Test
+    public void encodingTest() {
+        final int magic = 0x676c7401;
+        String hash = ObjectStore.hash(bytes("a"));
+        String other = ObjectStore.hash(bytes("b"));
+        List<String> strings = Arrays.asList("", "a b", "\u00e9t\u00e9",
+                "x".repeat(300));
+        HashMap<String, String> map = new HashMap<>();
+        map.put("f", hash);
+        map.put("d/g", other);
+        int[] lengths = {0, 127, 128, 16383, 16384, Integer.MAX_VALUE};
+        try {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(buffer);
+            Encoding.writeheader(out, magic, 2);
+            for (int length : lengths) {
+                Encoding.writelength(out, length);
+            }
+            Encoding.writestrings(out, strings);
+            Encoding.writehashes(out, Arrays.asList(hash, other, hash));
+            Encoding.writehashmap(out, map);
+            byte[] record = buffer.toByteArray();
+            DataInputStream in = new DataInputStream(
+                    new ByteArrayInputStream(record));
+            assertEquals(2, Encoding.readheader(in, magic, 3));
+            for (int length : lengths) {
+                assertEquals(length, Encoding.readlength(in));
+            }
+            assertEquals(strings, Encoding.readstrings(in));
+            assertEquals(Arrays.asList(hash, other, hash),
+                    Encoding.readhashes(in));
+            assertEquals(map, Encoding.readhashmap(in));
+            assertEquals(-1, in.read());
+            for (int[] header : new int[][] {{magic + 1, 2}, {magic, 1}}) {
+                in = new DataInputStream(new ByteArrayInputStream(record));
+                try {
+                    Encoding.readheader(in, header[0], header[1]);
+                    fail();
+                } catch (IOException excp) {
+                    assertTrue(excp.getMessage().contains(
+                            header[0] == magic ? "newer" : "unrecognized"));
+                }
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Check that the object cache evicts least recently used objects
+     *  to stay within its size, and counts hits and misses.*/
+    @Test
+    public void objectCacheTest() {
+        ObjectCache cache = new ObjectCache(100);
+        cache.put("a", new byte[20]);
+        cache.put("b", new byte[20]);
+        cache.put("c", new byte[20]);
+        assertNotNull(cache.get("a"));
+        cache.put("d", new byte[25]);
+        cache.put("e", new byte[25]);
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("a"));
+        assertTrue(cache.size() <= 100);
+        cache.put("big", new byte[30]);
+        assertNull(cache.get("big"));
+        assertEquals(2, cache.hits());
+        assertEquals(2, cache.misses());
+    }
+
+    /** Check that batch lines split into words at blanks, with quoted
+     *  strings kept whole.*/
+    @Test
+    public void wordsTest() {
+        assertArrayEquals(new String[] {"commit", "a \"b\" c"},
+                Main.words("  commit \"a \\\"b\\\" c\"  "));
+        assertArrayEquals(new String[] {"add", "x", ""},
+                Main.words("add\tx \"\""));
+        assertEquals(0, Main.words("   ").length);
+    }
 
+    /** Check that a diff finds the fewest changed lines and prints them
+     *  as unified hunks.*/
+    @Test
+    public void diffTest() {
+        String[] a = Diff.lines("a\nb\nc\nd\ne\nf\n"
+                                .getBytes(StandardCharsets.UTF_8));
+        String[] b = Diff.lines("a\nc\nd\nx\ne\nf"
+                                .getBytes(StandardCharsets.UTF_8));
+        List<int[]> changes = new Diff(a, b).changes();
+        assertEquals(3, changes.size());
+        assertArrayEquals(new int[] {1, 2, 1, 1}, changes.get(0));
+        assertArrayEquals(new int[] {4, 4, 3, 4}, changes.get(1));
+        assertArrayEquals(new int[] {5, 6, 5, 6}, changes.get(2));
+        StringWriter text = new StringWriter();
+        PrintWriter out = new PrintWriter(text);
+        new Diff(a, b).print("a/f", "b/f", out);
+        out.flush();
+        assertEquals("--- a/f\n+++ b/f\n@@ -1,6 +1,6 @@\n a\n-b\n c\n d\n"
+                     + "+x\n e\n-f\n+f\n\\ No newline at end of file\n",
+                     text.toString());
+    }
+
+    /** Check that a three-way merge takes the changes of either side
+     *  and marks only the lines both sides changed differently.*/
+    @Test
+    public void mergeTest() {
+        String[] base = Diff.lines("a\nb\nc\nd\ne\nf\ng\n");
+        String[] ours = Diff.lines("A\nb\nc\nd\ne\nF\ng\n");
+        String[] theirs = Diff.lines("a\nb\nc\nD\ne\nf2\ng\nh\n");
+        StringBuilder out = new StringBuilder();
+        assertEquals(1, Diff.merge(base, ours, theirs, out));
+        assertEquals("A\nb\nc\nD\ne\n<<<<<<< HEAD\nF\n=======\nf2\n"
+                     + ">>>>>>>\ng\nh\n", out.toString());
+        out = new StringBuilder();
+        assertEquals(0, Diff.merge(base, ours, ours, out));
+        assertEquals("A\nb\nc\nd\ne\nF\ng\n", out.toString());
+    }
+
+    /** Check that a file deleted on one side and changed on the other
+     *  is a whole-file conflict, even if it was empty before.*/
+    @Test
+    public void mergeDeletedTest() {
+        byte[] empty = new byte[0];
+        byte[] changed = "new\n".getBytes(StandardCharsets.UTF_8);
+        StringBuilder out = new StringBuilder();
+        assertEquals(1, Diff.merge(empty, null, changed, out));
+        assertEquals("<<<<<<< HEAD\n=======\nnew\n>>>>>>>\n",
+                     out.toString());
+        out = new StringBuilder();
+        assertEquals(1, Diff.merge(changed, changed, null, out));
+        assertEquals("<<<<<<< HEAD\nnew\n=======\n>>>>>>>\n",
+                     out.toString());
+        out = new StringBuilder();
+        assertEquals(0, Diff.merge(null, changed, changed, out));
+        assertEquals("new\n", out.toString());
+    }
+
+    /** Check that trees are updated, compared and flattened file by
+     *  file, keeping a file and a directory of the same name.*/
+    @Test
+    public void treeTest() {
+        inrepo(() -> {
+            String one = ObjectStore.hash(new byte[] {1});
+            String two = ObjectStore.hash(new byte[] {2});
+            HashMap<String, String> blobs = new HashMap<>();
+            blobs.put("a", one);
+            blobs.put("d/x", two);
+            blobs.put("d/e/y", one);
+            String root = Tree.write(blobs);
+            assertEquals(blobs, flattened(root));
+            HashMap<String, String> changes = new HashMap<>();
+            changes.put("d/x", null);
+            changes.put("d/e/z", two);
+            changes.put("a/b", two);
+            String next = Tree.update(root, changes);
+            blobs.remove("d/x");
+            blobs.put("d/e/z", two);
+            blobs.put("a/b", two);
+            assertEquals(blobs, flattened(next));
+            assertEquals(one, Tree.find(next, "a"));
+            assertEquals(two, Tree.find(next, "a/b"));
+            HashMap<String, String[]> diff = new HashMap<>();
+            Tree.diff(root, next, "", diff);
+            assertEquals(3, diff.size());
+            assertArrayEquals(new String[] {two, null}, diff.get("d/x"));
+            assertArrayEquals(new String[] {null, two}, diff.get("a/b"));
+            for (String name : blobs.keySet()) {
+                blobs.put(name, null);
+            }
+            assertNull(Tree.update(next, blobs));
+        });
+    }
 
+    /** Check that merge bases are found on the commit graph, taking the
+     *  best of several common ancestors.*/
+    @Test
+    public void mergeBaseTest() {
+        inrepo(() -> {
+            CommitGraph graph = CommitGraph.read(new ArrayList<>());
+            String init = addcommit(graph, new Commit("initial commit"));
+            String c1 = addcommit(graph, new Commit("c1", null, init));
+            String c2 = addcommit(graph, new Commit("c2", null, c1));
+            String d1 = addcommit(graph, new Commit("d1", null, c1));
+            String d2 = addcommit(graph, new Commit("d2", null, d1));
+            String m = addcommit(graph, new Commit("m", null, c2, d1));
+            String x = addcommit(graph, new Commit("x", null, c2, d2));
+            String y = addcommit(graph, new Commit("y", null, d2, c2));
+            assertEquals(d1, mergebase(graph, m, d2));
+            assertEquals(c1, mergebase(graph, c2, d2));
+            assertEquals(c1, mergebase(graph, c2, c1));
+            assertEquals(c2, mergebase(graph, m, c2));
+            assertEquals(d2, mergebase(graph, x, y));
+        });
+    }
+
+    /** Check that a commit whose parent has no row is refused, and that
+     *  a graph file not matching the commit list is rebuilt.*/
+    @Test
+    public void graphRebuildTest() {
+        inrepo(() -> {
+            Commit init = new Commit("initial commit");
+            Commit c1 = new Commit("c1", null, init.hashcode());
+            Commit c2 = new Commit("c2", null, c1.hashcode());
+            List<String> commits = new ArrayList<>();
+            for (Commit commit : Arrays.asList(init, c1, c2)) {
+                commit.save();
+                commits.add(commit.hashcode());
+            }
+            CommitGraph graph = CommitGraph.read(commits.subList(0, 1));
+            try {
+                graph.add(c2);
+                fail();
+            } catch (GitletException excp) {
+                assertEquals(1, graph.count());
+            }
+            graph = CommitGraph.read(commits);
+            assertEquals(3, graph.count());
+            assertEquals(graph.row(c1.hashcode()),
+                         graph.parent(graph.row(c2.hashcode())));
+            assertEquals(3, CommitGraph.read(commits).count());
+        });
+    }
+
+    /** Check that an empty object is transferred as no bytes, both
+     *  loose and packed.*/
+    @Test
+    public void emptyTransferTest() {
+        inrepo(() -> {
+            String hash = ObjectStore.write(new byte[0]);
+            assertEquals(0, transferred(hash).length);
+            ObjectStore.repack(new HashMap<>());
+            assertEquals(1, Pack.all().size());
+            assertEquals(0, transferred(hash).length);
+        });
+    }
+
+    /** Check that packed objects are found by hash and rebuilt through
+     *  their chains of deltas, caching the bases within their limit, and
+     *  are not stored again loose.*/
+    @Test
+    public void packTest() {
+        inrepo(() -> {
+            byte[] content = new byte[20000];
+            new Random(2).nextBytes(content);
+            List<byte[]> versions = new ArrayList<>();
+            HashMap<String, String> names = new HashMap<>();
+            for (int i = 0; i < 12; i += 1) {
+                content = content.clone();
+                content[i * 1000] += 1;
+                versions.add(content);
+                names.put(ObjectStore.write(content), "f");
+            }
+            ObjectStore.repack(names);
+            assertEquals(1, Pack.all().size());
+            Pack pack = Pack.all().get(0);
+            assertEquals(12, pack.count());
+            assertTrue(Utils.join(Pack.PACK_FOLDER, pack.name() + ".pack")
+                       .length() < 2 * content.length);
+            for (int i = versions.size() - 1; i >= 0; i -= 1) {
+                String hash = ObjectStore.hash(versions.get(i));
+                assertTrue(ObjectStore.contains(hash));
+                int offset = pack.find(Utils.fromHex(hash));
+                assertTrue(offset >= 0);
+                assertEquals(content.length, pack.size(offset));
+                try (InputStream in = pack.open(offset)) {
+                    assertArrayEquals(versions.get(i), in.readAllBytes());
+                } catch (IOException excp) {
+                    throw new IllegalArgumentException(excp.getMessage());
+                }
+            }
+            assertEquals(ObjectStore.hash(versions.get(0)),
+                         ObjectStore.write(versions.get(0)));
+            assertEquals(1, Utils.directoriesIn(ObjectStore.OBJECT_FOLDER)
+                         .size());
+            assertTrue(pack.cachedbytes() > 0);
+            assertTrue(pack.cachedbytes() <= Pack.BASE_CACHE_SIZE);
+            String missing = ObjectStore.hash(new byte[] {1});
+            assertEquals(-1, pack.find(Utils.fromHex(missing)));
+            assertFalse(ObjectStore.contains(missing));
+        });
+    }
+
+    /** Check that a file rewritten without changing its stat data is
+     *  trusted to be unchanged only if the index was written after it.*/
+    @Test
+    public void racyCleanTest() {
+        inrepo(() -> {
+            File file = new File(Main.CURR_FOLDER, "f");
+            try {
+                gitlet("init");
+                Utils.writeContents(file, "one\n");
+                gitlet("add", "f");
+                gitlet("commit", "c");
+                FileTime time = Files.getLastModifiedTime(file.toPath());
+                Utils.writeContents(file, "two\n");
+                Files.setLastModifiedTime(file.toPath(), time);
+                Files.setLastModifiedTime(Repo.INDEX_FILE.toPath(),
+                        FileTime.fromMillis(time.toMillis() + 10000));
+                assertFalse(gitlet("status").contains("f (modified)"));
+                Files.setLastModifiedTime(Repo.INDEX_FILE.toPath(), time);
+                assertTrue(gitlet("status").contains("f (modified)"));
+                FileStat stat = new FileStat(4, 1000, 1);
+                assertTrue(stat.racy(1000));
+                assertFalse(stat.racy(1001));
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            } finally {
+                file.delete();
+            }
+        });
+    }
+
+    /** Check that the commit index finds the hashes starting with a
+     *  prefix of any length, so that an ambiguous prefix is seen.*/
+    @Test
+    public void commitIndexTest() {
+        inrepo(() -> {
+            assertEquals(0, CommitIndex.read().find("a", 2).size());
+            List<String> commits = new ArrayList<>();
+            for (String start : new String[] {"ff", "ab13", "00", "ab12",
+                                              "0f", "abff", "10"}) {
+                commits.add(start + "0".repeat(Utils.UID_LENGTH
+                                               - start.length()));
+            }
+            CommitIndex.write(commits);
+            CommitIndex index = CommitIndex.read();
+            assertEquals(7, index.count());
+            assertEquals(Arrays.asList(commits.get(3), commits.get(1),
+                                       commits.get(5)),
+                         index.find("ab", 10));
+            assertEquals(2, index.find("ab1", 2).size());
+            assertEquals(2, index.find("ab", 2).size());
+            assertEquals(Arrays.asList(commits.get(3)),
+                         index.find("ab12", 2));
+            assertEquals(Arrays.asList(commits.get(2), commits.get(4)),
+                         index.find("0", 10));
+            assertEquals(Arrays.asList(commits.get(0)), index.find("f", 2));
+            assertEquals(Arrays.asList(commits.get(6)),
+                         index.find(commits.get(6), 2));
+            assertEquals(0, index.find("ac", 2).size());
+            assertEquals(0, index.find("1f", 2).size());
+        });
+    }
+
+    /** Check that every text a regular expression matches holds all of
+     *  the trigrams taken from it.*/
+    @Test
+    public void regexTrigramsTest() {
+        String[][] cases = {
+            {"abc", "xabcx"}, {"ab+cd", "abbbcd"}, {"abc?d", "abd"},
+            {"ab*cd", "acd"}, {"a(bc)*dab", "adab"}, {"ab{0,2}cd", "acd"},
+            {"[ab]cd", "bcd"}, {"a.cd", "abcd"}, {"\\.ab", ".ab"},
+            {"ab\\d+cd", "ab12cd"}, {"abc|bcd", "bcd"},
+            {"(?i)ABC", "abc"}, {"\\Qa.c\\E", "a.c"},
+        };
+        Random random = new Random(3);
+        String letters = "abcd.1";
+        for (String[] test : cases) {
+            Pattern pattern = Pattern.compile(test[0]);
+            Set<Integer> required = MessageIndex.regextrigrams(test[0]);
+            assertTrue(pattern.matcher(test[1]).find());
+            assertTrue(MessageIndex.trigrams(test[1]).containsAll(required));
+            for (int i = 0; i < 2000; i += 1) {
+                StringBuilder text = new StringBuilder();
+                for (int n = random.nextInt(9); n > 0; n -= 1) {
+                    text.append(letters.charAt(random.nextInt(
+                            letters.length())));
+                }
+                if (pattern.matcher(text).find()) {
+                    assertTrue(MessageIndex.trigrams(text.toString())
+                               .containsAll(required));
+                }
+            }
+        }
+        assertEquals(MessageIndex.trigrams("abc"),
+                     MessageIndex.regextrigrams("^abc+de$"));
+        assertTrue(MessageIndex.regextrigrams("abc|abc").isEmpty());
+    }
+
+    /** Check that the message index lists the commits holding each
+     *  trigram, and keeps them when commits are added.*/
+    @Test
+    public void messageIndexTest() {
+        inrepo(() -> {
+            List<String> commits = new ArrayList<>();
+            String parent = new Commit("initial commit").hashcode();
+            for (String message : new String[] {"fix abc", "add bcd",
+                                                "abcd", "other"}) {
+                Commit commit = new Commit(message, null, parent);
+                commit.save();
+                commits.add(commit.hashcode());
+                parent = commit.hashcode();
+            }
+            MessageIndex.update(MessageIndex.read(), commits.subList(0, 3));
+            MessageIndex index = MessageIndex.read();
+            assertEquals(3, index.count());
+            assertNull(index.candidates(new HashSet<>()));
+            assertArrayEquals(new int[] {0, 2},
+                    index.candidates(MessageIndex.trigrams("abc")));
+            assertArrayEquals(new int[] {2},
+                    index.candidates(MessageIndex.trigrams("abcd")));
+            MessageIndex.update(index, commits);
+            index = MessageIndex.read();
+            assertEquals(4, index.count());
+            assertArrayEquals(new int[] {1, 2},
+                    index.candidates(MessageIndex.trigrams("bcd")));
+            assertArrayEquals(new int[] {3},
+                    index.candidates(MessageIndex.trigrams("other")));
+            assertEquals(0, index.candidates(
+                    MessageIndex.trigrams("xyz")).length);
+        });
+    }
+
+    /** Check that checkout and reset write only the files that differ,
+     *  switch a path between a file and a directory both ways, and are
+     *  stopped by an untracked file in the way.*/
+    @Test
+    public void switchTest() {
+        inrepo(() -> {
+            File root = Main.CURR_FOLDER;
+            try {
+                gitlet("init");
+                Utils.writeContents(new File(root, "d"), "file");
+                Utils.writeContents(new File(root, "same"), "same");
+                gitlet("add", "d", "same");
+                gitlet("commit", "c1");
+                String c1 = head();
+                gitlet("branch", "other");
+                gitlet("rm", "d");
+                new File(root, "d").mkdir();
+                new File(root, "u").mkdir();
+                Utils.writeContents(new File(root, "d/x"), "x");
+                Utils.writeContents(new File(root, "u/z"), "z");
+                gitlet("add", "d/x", "u");
+                gitlet("commit", "c2");
+                String c2 = head();
+                File same = new File(root, "same");
+                assertTrue(same.setLastModified(1000000));
+                assertEquals("", gitlet("checkout", "other"));
+                assertEquals("file", working("d"));
+                assertFalse(new File(root, "u").exists());
+                assertEquals(1000000, same.lastModified());
+                assertEquals("", gitlet("checkout", "master"));
+                assertEquals("x", working("d/x"));
+                Utils.writeContents(new File(root, "d/y"), "y");
+                assertTrue(gitlet("checkout", "other")
+                           .startsWith("There is an untracked file"));
+                assertEquals("x", working("d/x"));
+                new File(root, "d/y").delete();
+                assertEquals("", gitlet("reset", c1));
+                assertEquals("file", working("d"));
+                assertEquals(1000000, same.lastModified());
+                Utils.writeContents(new File(root, "u"), "untracked");
+                assertTrue(gitlet("reset", c2)
+                           .startsWith("There is an untracked file"));
+                assertEquals("untracked", working("u"));
+                assertEquals("file", working("d"));
+            } finally {
+                for (String name : new String[] {"d", "same", "u"}) {
+                    deletetree(new File(root, name));
+                }
+            }
+        });
+    }
+
+    /** Check that add stages every file under the directories it is
+     *  given, stages only the files whose content changed, unstages a
+     *  file put back as committed, and refuses paths outside the working
+     *  directory.*/
+    @Test
+    public void addTest() {
+        inrepo(() -> {
+            File root = Main.CURR_FOLDER;
+            try {
+                gitlet("init");
+                new File(root, "s/t").mkdirs();
+                Utils.writeContents(new File(root, "s/a"), "a");
+                Utils.writeContents(new File(root, "s/t/b"), "b");
+                Utils.writeContents(new File(root, "c"), "c");
+                assertEquals("", gitlet("add", "s", "./c"));
+                assertEquals(Arrays.asList("c", "s/a", "s/t/b"), staged());
+                gitlet("commit", "c1");
+                Utils.writeContents(new File(root, "s/a"), "a2");
+                Utils.writeContents(new File(root, "s/t/b"), "b");
+                assertTrue(new File(root, "s/t/b").setLastModified(1000000));
+                assertEquals("", gitlet("add", "s"));
+                assertEquals(Arrays.asList("s/a"), staged());
+                Utils.writeContents(new File(root, "s/a"), "a");
+                assertEquals("", gitlet("add", "s/t/../a"));
+                assertEquals(Arrays.asList(), staged());
+                String outside = "File is outside the working directory.\n";
+                assertEquals(outside, gitlet("add", "../c"));
+                assertEquals(outside, gitlet("add", "s/../../c"));
+                assertEquals(outside, gitlet("add",
+                        new File(root, "c").getAbsolutePath()));
+                assertEquals(outside, gitlet("add", ".gitlet/HEAD"));
+                assertEquals("File does not exist.\n", gitlet("add", "x"));
+            } finally {
+                deletetree(new File(root, "s"));
+                new File(root, "c").delete();
+            }
+        });
+    }
+
+    /** Check that the working tree scan lists the plain files in name
+     *  order, skipping the repository folder and symbolic links, and
+     *  that the parallel hash and store agree with the object store.*/
+    @Test
+    public void workTreeTest() {
+        inrepo(() -> {
+            File root = new File(Main.CURR_FOLDER, "w");
+            try {
+                TreeMap<String, String> expected = new TreeMap<>();
+                for (int i = 0; i < 10 * WorkTree.BATCH; i += 1) {
+                    String name = (i % 3 == 0 ? "" : "d" + (i % 7) + "/")
+                        + (i % 2 == 0 ? "" : "e/") + "f" + i;
+                    File file = new File(root, name);
+                    file.getParentFile().mkdirs();
+                    Utils.writeContents(file, "content " + i);
+                    expected.put(name, ObjectStore.hash(bytes("content "
+                            + i)));
+                }
+                new File(root, ".gitlet").mkdir();
+                Utils.writeContents(new File(root, ".gitlet/x"), "x");
+                Utils.writeContents(new File(root, "d1/.gitlet"), "y");
+                expected.put("d1/.gitlet", ObjectStore.hash(bytes("y")));
+                Files.createSymbolicLink(new File(root, "link").toPath(),
+                        new File(root, "f0").getAbsoluteFile().toPath());
+                new File(root, "empty").mkdir();
+                List<String> names = WorkTree.files(root);
+                assertEquals(new ArrayList<>(expected.keySet()), names);
+                List<String> asked = new ArrayList<>(names);
+                asked.addAll(Arrays.asList("missing", "d1", "d1/e"));
+                assertEquals(expected, new TreeMap<>(
+                        WorkTree.hash(root, asked)));
+                for (String hash : expected.values()) {
+                    assertFalse(ObjectStore.contains(hash));
+                }
+                assertEquals(expected, new TreeMap<>(
+                        WorkTree.store(root, asked)));
+                for (String name : names) {
+                    assertArrayEquals(Utils.readContents(
+                            new File(root, name)),
+                            Blob.content(expected.get(name)));
+                }
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            } finally {
+                deletetree(root);
+            }
+        });
+    }
+
+    /** Check that a file too big to be read whole is hashed, stored and
+     *  checked out as a stream with the same hash as its bytes.*/
+    @Test
+    public void largeFileTest() {
+        inrepo(() -> {
+            File file = new File(Main.CURR_FOLDER, "big");
+            try {
+                byte[] content = new byte[3 * WorkTree.SMALL_FILE + 1];
+                new Random(4).nextBytes(content);
+                Utils.writeContents(file, (Object) content);
+                String hash = ObjectStore.hash(content);
+                assertEquals(hash, ObjectStore.hash(file));
+                gitlet("init");
+                assertEquals("", gitlet("add", "big"));
+                assertEquals("", gitlet("commit", "big"));
+                assertTrue(ObjectStore.contains(hash));
+                assertEquals(content.length, ObjectStore.size(hash));
+                Utils.writeContents(file, "changed");
+                assertEquals("", gitlet("checkout", "--", "big"));
+                assertArrayEquals(content, Utils.readContents(file));
+                assertArrayEquals(content, Blob.content(hash));
+            } finally {
+                file.delete();
+            }
+        });
+    }
+
+    /** Check that branch heads and the commit index are written only
+     *  with the commits they name, so that a batch killed before saving
+     *  leaves a repository that can still commit, and that a restored
+     *  snapshot drops the branches made since.*/
+    @Test
+    public void unsavedRefsTest() {
+        inrepo(() -> {
+            File file = new File(Main.CURR_FOLDER, "f");
+            try {
+                gitlet("init");
+                String init = head();
+                Repo repo = Repo.fromFile();
+                for (int i = 0; i <= CommitIndex.MAX_UNINDEXED; i += 1) {
+                    Utils.writeContents(file, "v" + i);
+                    run(repo, "add", "f");
+                    run(repo, "commit", "c" + i);
+                }
+                run(repo, "branch", "b");
+                assertEquals(init + "\n", run(repo, "merge-base",
+                        init.substring(0, 8), "master"));
+                assertFalse(CommitIndex.INDEX_FILE.exists());
+                assertEquals(init, head());
+                assertFalse(Utils.join(Repo.BRANCH_FOLDER, "b").exists());
+                Utils.writeContents(file, "after");
+                assertEquals("", gitlet("add", "f"));
+                assertEquals("", gitlet("commit", "after"));
+                repo = Repo.fromFile();
+                Repo saved = repo.snapshot();
+                run(repo, "branch", "c");
+                repo.restore(saved);
+                repo.save();
+                assertFalse(Utils.join(Repo.BRANCH_FOLDER, "c").exists());
+            } finally {
+                file.delete();
+            }
+        });
+    }
+
+    /** Check that global-log pages past the first batch, honours -n and
+     *  --skip, and reports a missing commit as an error message.*/
+    @Test
+    public void globalLogTest() {
+        inrepo(() -> {
+            File file = new File(Main.CURR_FOLDER, "f");
+            try {
+                gitlet("init");
+                Repo repo = Repo.fromFile();
+                int total = 2 * Repo.LOG_BATCH + 3;
+                for (int i = 1; i < total; i += 1) {
+                    Utils.writeContents(file, "v" + i);
+                    run(repo, "add", "f");
+                    run(repo, "commit", "c" + i);
+                }
+                repo.save();
+                List<String> all = logged(gitlet("global-log"));
+                assertEquals(total, all.size());
+                assertEquals(new HashSet<>(all).size(), all.size());
+                assertEquals(all.subList(0, 3),
+                        logged(gitlet("global-log", "-n", "3")));
+                assertEquals(all.subList(total - 2, total),
+                        logged(gitlet("global-log", "--skip",
+                                "" + (total - 2))));
+                assertEquals(all.subList(5, 5 + Repo.LOG_BATCH + 1),
+                        logged(gitlet("global-log", "--skip", "5", "-n",
+                                "" + (Repo.LOG_BATCH + 1))));
+                assertEquals("", gitlet("global-log", "--skip",
+                        "" + total));
+                assertEquals("Incorrect operands.\n",
+                        gitlet("global-log", "-n"));
+                assertEquals("Incorrect operands.\n",
+                        gitlet("global-log", "-n", "-1"));
+                String gone = all.get(Repo.LOG_BATCH + 1);
+                assertTrue(Utils.join(ObjectStore.OBJECT_FOLDER,
+                        gone.substring(0, ObjectStore.FANOUT_LENGTH),
+                        gone.substring(ObjectStore.FANOUT_LENGTH)).delete());
+                assertTrue(gitlet("global-log").endsWith(
+                        "Missing object " + gone + ".\n"));
+            } finally {
+                file.delete();
+            }
+        });
+    }
+
+    /** Return the commit ids in the global-log output LOG, in order.*/
+    private static List<String> logged(String log) {
+        List<String> result = new ArrayList<>();
+        for (String line : log.split("\n")) {
+            if (line.startsWith("commit ")) {
+                result.add(line.substring("commit ".length()));
+            }
+        }
+        return result;
+    }
+
+    /** Check that save writes only the parts of the state a command
+     *  changed, appends new commits to the commit list, and that the
+     *  parts written read back as the state that was saved.*/
+    @Test
+    public void stateSaveTest() {
+        inrepo(() -> {
+            File file = new File(Main.CURR_FOLDER, "f");
+            try {
+                gitlet("init");
+                Utils.writeContents(file, "one");
+                assertTrue(file.setLastModified(1000000));
+                gitlet("add", "f");
+                gitlet("commit", "c1");
+                String c1 = head();
+                File master = Utils.join(Repo.BRANCH_FOLDER, "master");
+                File[] parts = {Main.RECORD, Repo.INDEX_FILE,
+                    Repo.COMMITS_FILE, master};
+                for (File part : parts) {
+                    assertTrue(part.setLastModified(2000000));
+                }
+                assertTrue(gitlet("status").contains("*master"));
+                gitlet("branch", "b");
+                assertEquals(c1, Utils.readContentsAsString(
+                        Utils.join(Repo.BRANCH_FOLDER, "b")));
+                for (File part : parts) {
+                    assertEquals(2000000, part.lastModified());
+                }
+                gitlet("checkout", "b");
+                assertEquals("b", Utils.readContentsAsString(Main.RECORD));
+                assertEquals(2000000, master.lastModified());
+                assertEquals(2000000, Repo.COMMITS_FILE.lastModified());
+                byte[] commits = Utils.readContents(Repo.COMMITS_FILE);
+                Utils.writeContents(file, "two");
+                gitlet("add", "f");
+                gitlet("commit", "c2");
+                byte[] appended = Utils.readContents(Repo.COMMITS_FILE);
+                assertEquals(commits.length + Encoding.HASH_LENGTH,
+                        appended.length);
+                assertArrayEquals(commits,
+                        Arrays.copyOf(appended, commits.length));
+                assertEquals(2000000, master.lastModified());
+                assertEquals(c1, Utils.readContentsAsString(master));
+                String c2 = head();
+                assertNotEquals(c1, c2);
+                assertTrue(gitlet("log").startsWith("===\ncommit " + c2));
+                assertEquals(c1 + "\n", gitlet("merge-base", "master", "b"));
+                assertTrue(gitlet("status").contains(
+                        "=== Branches ===\n*b\nmaster\n"));
+                assertEquals(Arrays.asList(), staged());
+            } finally {
+                file.delete();
+            }
+        });
+    }
+
+    /** Check that a batch drops the changes of a failing line, reports
+     *  it with its line number and status, and goes on with the next,
+     *  and that a restored snapshot forgets the commands run since.*/
+    @Test
+    public void batchTest() {
+        inrepo(() -> {
+            File root = Main.CURR_FOLDER;
+            File lines = new File(root, "lines");
+            try {
+                gitlet("init");
+                Utils.writeContents(new File(root, "f"), "one");
+                gitlet("add", "f");
+                gitlet("commit", "c1");
+                gitlet("branch", "other");
+                gitlet("checkout", "other");
+                Utils.writeContents(new File(root, "g"), "gone");
+                gitlet("add", "g");
+                gitlet("commit", "c2");
+                gitlet("checkout", "master");
+                String gone = ObjectStore.hash(bytes("gone"));
+                assertTrue(Utils.join(ObjectStore.OBJECT_FOLDER,
+                        gone.substring(0, ObjectStore.FANOUT_LENGTH),
+                        gone.substring(ObjectStore.FANOUT_LENGTH)).delete());
+                Utils.writeContents(new File(root, "h"), "h");
+                Utils.writeContents(lines, String.join("\n",
+                        "add h", "branch b", "rm nosuch", "# comment", "",
+                        "checkpoint", "bogus", "daemon", "checkout other",
+                        "commit \"add h\""));
+                String output = output(WorkTree.ROLLED_BACK, () ->
+                        Main.batch(new String[] {"batch", "lines"}));
+                String[] reported = output.split("\n");
+                assertEquals(5, reported.length);
+                assertEquals("line 3: No reason to remove the file.",
+                        reported[0]);
+                assertEquals("line 7: No command with that name exists.",
+                        reported[1]);
+                assertEquals("line 8: No command with that name exists.",
+                        reported[2]);
+                assertEquals("line 9: Cannot write 1 file:", reported[3]);
+                assertTrue(reported[4].startsWith("  g: "));
+                assertEquals("master", Utils.readContentsAsString(
+                        Main.RECORD));
+                assertEquals("one", working("f"));
+                assertFalse(new File(root, "g").exists());
+                assertTrue(gitlet("log").contains("\nadd h\n"));
+                assertTrue(Utils.join(Repo.BRANCH_FOLDER, "b").isFile());
+                String head = head();
+                Repo repo = Repo.fromFile();
+                Repo saved = repo.snapshot();
+                Utils.writeContents(new File(root, "h"), "changed");
+                run(repo, "add", "h");
+                run(repo, "commit", "c3");
+                run(repo, "branch", "x");
+                run(repo, "rm-branch", "b");
+                repo.restore(saved);
+                repo.save();
+                assertEquals(head, head());
+                assertEquals(Arrays.asList(), staged());
+                assertTrue(Utils.join(Repo.BRANCH_FOLDER, "b").isFile());
+                assertFalse(Utils.join(Repo.BRANCH_FOLDER, "x").exists());
+            } finally {
+                for (String name : new String[] {"f", "g", "h", "lines"}) {
+                    new File(root, name).delete();
+                }
+            }
+        });
+    }
+
+    /** Check that commands forwarded to a daemon print their output and
+     *  return their status as if run alone, and that the daemon stops
+     *  when asked and removes its socket.*/
+    @Test
+    public void daemonTest() {
+        inrepo(() -> {
+            File file = new File(Main.CURR_FOLDER, "f");
+            Thread daemon = new Thread(() -> {
+                try {
+                    Daemon.command(new String[] {"daemon"});
+                } catch (IOException excp) {
+                    throw new IllegalArgumentException(excp.getMessage());
+                }
+            });
+            try {
+                gitlet("init");
+                assertEquals(Daemon.NOT_RUNNING,
+                        Daemon.forward(new String[] {"status"}));
+                daemon.start();
+                for (int i = 0; i < 100 && !Daemon.SOCKET_FILE.exists();
+                     i += 1) {
+                    Thread.sleep(50);
+                }
+                Utils.writeContents(file, "one");
+                assertEquals("", forward("add", "f"));
+                assertEquals("", forward("commit", "c1"));
+                assertTrue(forward("log").startsWith("===\ncommit "
+                        + head() + "\n"));
+                assertEquals("No such branch exists.\n",
+                        forward("checkout", "nosuch"));
+                assertEquals(" No command with that name exists.\n",
+                        forward("bogus"));
+                assertEquals("A daemon is already running.\n",
+                        forward("daemon"));
+                assertEquals("Daemon stopped.\n",
+                        forward("daemon", Daemon.STOP));
+                daemon.join(5000);
+                assertFalse(daemon.isAlive());
+                assertFalse(Daemon.SOCKET_FILE.exists());
+                assertEquals(Daemon.NOT_RUNNING,
+                        Daemon.forward(new String[] {"status"}));
+            } catch (InterruptedException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            } finally {
+                if (daemon.isAlive()) {
+                    Daemon.forward(new String[] {"daemon", Daemon.STOP});
+                }
+                file.delete();
+            }
+        });
+    }
+
+    /** Forward the command ARGS to the daemon, which must exit with
+     *  status 0, and return what it prints.*/
+    private String forward(String... args) {
+        return output(0, () -> Daemon.forward(args));
+    }
+
+    /** Run COMMAND, which must return the exit status STATUS, and return
+     *  what it prints.*/
+    private String output(int status, Callable<Integer> command) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(bytes, true, StandardCharsets.UTF_8));
+        try {
+            assertEquals(status, (int) command.call());
+        } catch (Exception excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        } finally {
+            System.setOut(out);
+        }
+        return bytes.toString(StandardCharsets.UTF_8);
+    }
+
+    /** Check that a checkout replaces a file by a directory and back,
+     *  and that a checkout failing part way puts back every file it
+     *  replaced or deleted and exits with ROLLED_BACK.*/
+    @Test
+    public void checkoutRollbackTest() {
+        inrepo(() -> {
+            File root = Main.CURR_FOLDER;
+            try {
+                String one = ObjectStore.write(bytes("one"));
+                String two = ObjectStore.write(bytes("two"));
+                String dirty = ObjectStore.write(bytes("dirty"));
+                Utils.writeContents(new File(root, "a"), "dirty");
+                new File(root, "d").mkdir();
+                Utils.writeContents(new File(root, "d/x"), "one");
+                Utils.writeContents(new File(root, "q"), "in the way");
+                HashMap<String, String> previous = new HashMap<>();
+                previous.put("a", dirty);
+                previous.put("d/x", one);
+                HashMap<String, String> files = new HashMap<>();
+                files.put("a", two);
+                files.put("d", two);
+                files.put("q/r", one);
+                try {
+                    WorkTree.checkout(root, files, previous,
+                            Arrays.asList("d/x"));
+                    fail();
+                } catch (GitletException excp) {
+                    assertEquals(WorkTree.ROLLED_BACK, excp.status());
+                    assertTrue(excp.getMessage().contains("q/r"));
+                }
+                assertEquals("dirty", working("a"));
+                assertEquals("one", working("d/x"));
+                assertEquals("in the way", working("q"));
+                new File(root, "q").delete();
+                WorkTree.checkout(root, files, previous,
+                        Arrays.asList("d/x"));
+                assertEquals("two", working("a"));
+                assertEquals("two", working("d"));
+                assertEquals("one", working("q/r"));
+                files.clear();
+                files.put("d/e/x", one);
+                WorkTree.checkout(root, files, new HashMap<>(),
+                        Arrays.asList("d", "q/r"));
+                assertEquals("one", working("d/e/x"));
+                assertFalse(new File(root, "q").exists());
+            } finally {
+                for (String name : new String[] {"a", "d", "q"}) {
+                    deletetree(new File(root, name));
+                }
+            }
+        });
+    }
+
+    /** Add COMMIT to GRAPH and return its hash.*/
+    private String addcommit(CommitGraph graph, Commit commit) {
+        graph.add(commit);
+        return commit.hashcode();
+    }
+
+    /** Return the hash of the merge base in GRAPH of the commits with
+     *  hashes A and B.*/
+    private String mergebase(CommitGraph graph, String a, String b) {
+        return graph.hash(graph.mergebase(graph.row(a), graph.row(b)));
+    }
+
+    /** Run the command ARGS on the repository in the working directory,
+     *  as Main does, and return what it prints, with its error message
+     *  if it fails.*/
+    private String gitlet(String... args) {
+        Repo repo = Main.RECORD.isFile() ? Repo.fromFile() : new Repo();
+        String output = run(repo, args);
+        repo.save();
+        return output;
+    }
+
+    /** Run the command ARGS on REPO without saving it, and return what
+     *  it prints, with its error message if it fails.*/
+    private String run(Repo repo, String... args) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(bytes, true, StandardCharsets.UTF_8));
+        try {
+            repo.process(args);
+        } catch (GitletException excp) {
+            System.out.println(excp.getMessage());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        } finally {
+            System.setOut(out);
+        }
+        return bytes.toString(StandardCharsets.UTF_8);
+    }
+
+    /** Return the files staged in the repository in the working
+     *  directory, as status lists them.*/
+    private List<String> staged() {
+        List<String> lines = Arrays.asList(gitlet("status").split("\n"));
+        int start = lines.indexOf("=== Staged Files ===") + 1;
+        int end = start;
+        while (!lines.get(end).isEmpty()) {
+            end += 1;
+        }
+        return lines.subList(start, end);
+    }
+
+    /** Return the hash of the head of the current branch of the
+     *  repository in the working directory.*/
+    private String head() {
+        String branch = Utils.readContentsAsString(Main.RECORD);
+        return Utils.readContentsAsString(Utils.join(Repo.BRANCH_FOLDER,
+                branch));
+    }
+
+    /** Return the UTF-8 bytes of TEXT.*/
+    private byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /** Return the files below the tree with HASH, keyed by name.*/
+    private HashMap<String, String> flattened(String hash) {
+        HashMap<String, String> blobs = new HashMap<>();
+        Tree.flatten(hash, "", blobs);
+        return blobs;
+    }
+
+    /** Return the content of the object with HASH as transferred by
+     *  the object store.*/
+    private byte[] transferred(String hash) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectStore.transfer(hash, Channels.newChannel(bytes));
+        return bytes.toByteArray();
+    }
+
+    /** Run TEST in a new repository in the working directory, which
+     *  must not hold one, and delete the repository afterwards.*/
+    private void inrepo(Runnable test) {
+        assertFalse(Main.MAIN_FOLDER.exists());
+        ObjectStore.OBJECT_FOLDER.mkdirs();
+        try {
+            test.run();
+        } finally {
+            Pack.reset();
+            Config.reset();
+            deletetree(Main.MAIN_FOLDER);
+        }
+    }
+
+    /** Delete FILE, and everything under it if it is a directory.*/
+    private void deletetree(File file) {
+        if (!file.exists()) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(file.toPath())) {
+            files.sorted(Comparator.reverseOrder())
+                .forEach(path -> path.toFile().delete());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Return the content of the working file NAME as a string.*/
+    private String working(String name) {
+        return Utils.readContentsAsString(new File(Main.CURR_FOLDER, name));
+    }
+
+    /** Return the hashes of the chunks DATA is cut into.*/
+    private Set<String> chunkhashes(byte[] data) {
+        Set<String> hashes = new HashSet<>();
+        int start = 0;
+        while (start < data.length) {
+            int end = Chunker.cut(data, start, data.length);
+            assertTrue(end - start <= Chunker.MAX_CHUNK);
+            hashes.add(ObjectStore.hash(Arrays.copyOfRange(data, start,
+                    end)));
+            start = end;
+        }
+        return hashes;
+    }
+
+}
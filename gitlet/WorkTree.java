@@ -0,0 +1,456 @@
+package gitlet;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.Semaphore;
+
+/** Parallel scans and updates of the working tree. Directories are listed
+ *  and files are hashed and written on a fork-join pool with one worker
+ *  per core. Small files are read whole, larger ones are hashed as
+ *  streams, and the bytes read by all workers at once are bounded so that
+ *  a tree of large files does not exhaust the heap.
+ *  @author Qindan Zhu
+ */
+class WorkTree {
+
+    /** Most bytes held in memory by the hashing workers at once.*/
+    static final int MAX_IN_FLIGHT = 64 << 20;
+    /** Largest file that is read whole to be hashed.*/
+    static final int SMALL_FILE = 1 << 20;
+    /** Number of files hashed by one task without splitting it.*/
+    static final int BATCH = 16;
+
+    /** Most failed files named in the error of a checkout.*/
+    static final int MAX_REPORTED = 10;
+    /** Exit status of a command whose checkout was rolled back.*/
+    static final int ROLLED_BACK = 1;
+
+    /** Config key of the number of threads writing files at once.*/
+    static final String WRITERS_KEY = "checkout.workers";
+    /** Least default number of threads writing files at once, which wait
+     *  on the disk more than they use a core.*/
+    static final int MIN_WRITERS = 8;
+
+    /** The pool the scans run on.*/
+    private static ForkJoinPool _pool;
+    /** The pool files are written on.*/
+    private static ForkJoinPool _writers;
+
+    /** Return the names of all plain files under ROOT, relative to it and
+     *  separated by '/', in sorted order. The repository folder is
+     *  skipped.*/
+    static List<String> files(File root) {
+        List<String> names = pool().invoke(new Walk(root, ""));
+        names.sort(null);
+        return names;
+    }
+
+    /** Return the hashes of the contents of the files NAMES under ROOT,
+     *  keyed by name. Files that do not exist or are not plain files are
+     *  left out.*/
+    static HashMap<String, String> hash(File root, Collection<String> names) {
+        return hash(root, names, false);
+    }
+
+    /** Write the contents of the files NAMES under ROOT to the object
+     *  store and return their hashes, keyed by name. Each file is read
+     *  once, to be hashed and stored. Files that do not exist or are not
+     *  plain files are left out.*/
+    static HashMap<String, String> store(File root,
+                                         Collection<String> names) {
+        return hash(root, names, true);
+    }
+
+    /** Return the hashes of the contents of the files NAMES under ROOT,
+     *  keyed by name, also writing them to the object store if STORE.*/
+    private static HashMap<String, String> hash(File root,
+            Collection<String> names, boolean store) {
+        String[] files = names.toArray(new String[0]);
+        String[] hashes = new String[files.length];
+        Hash task = new Hash(root, files, hashes, store, 0, files.length);
+        if (files.length <= 1) {
+            task.compute();
+        } else {
+            pool().invoke(task);
+        }
+        HashMap<String, String> result = new HashMap<>(files.length * 2);
+        for (int i = 0; i < files.length; i += 1) {
+            if (hashes[i] != null) {
+                result.put(files[i], hashes[i]);
+            }
+        }
+        return result;
+    }
+
+    /** Make the files under ROOT named by the keys of FILES hold the blobs
+     *  with the hashes they map to, and delete the files DELETED. The
+     *  deleted files that are in the way of a file to write, at one of
+     *  its directories or below it, are deleted first and the directories
+     *  they leave empty removed. Then the missing directories are made,
+     *  parents before children, and the files are written in parallel.
+     *  The other files DELETED are deleted last, again removing the
+     *  directories they leave empty. If some file cannot be written, the
+     *  files this checkout replaced or deleted are put back as they were,
+     *  holding the blob PREVIOUS maps them to or deleted if it maps them
+     *  to none, the directories it made are removed, and the error, whose
+     *  status is ROLLED_BACK, names the files that failed. PREVIOUS must
+     *  map each file of FILES and DELETED that exists to the stored blob
+     *  it holds. Blobs missing from the store are found before anything
+     *  is changed.*/
+    static void checkout(File root, Map<String, String> files,
+                         Map<String, String> previous,
+                         Collection<String> deleted) {
+        String[] names = files.keySet().toArray(new String[0]);
+        String[] hashes = new String[names.length];
+        boolean[] touched = new boolean[names.length];
+        ConcurrentSkipListMap<String, String> failed =
+            new ConcurrentSkipListMap<>();
+        TreeSet<String> dirs = new TreeSet<>();
+        for (int i = 0; i < names.length; i += 1) {
+            hashes[i] = files.get(names[i]);
+            if (!ObjectStore.contains(hashes[i])) {
+                failed.put(names[i], "missing object " + hashes[i]);
+            }
+            dirs.addAll(parents(names[i]));
+        }
+        List<String> inway = new ArrayList<>();
+        List<String> others = new ArrayList<>();
+        for (String name : deleted) {
+            boolean below = false;
+            for (String dir : parents(name)) {
+                below |= files.containsKey(dir);
+            }
+            (below || dirs.contains(name) ? inway : others).add(name);
+        }
+        String[] cleared = inway.toArray(new String[0]);
+        boolean[] clearedtouched = new boolean[cleared.length];
+        List<String> created = new ArrayList<>();
+        if (failed.isEmpty()) {
+            writers().invoke(new Checkout(root, cleared,
+                    new String[cleared.length], clearedtouched, failed, 0,
+                    cleared.length));
+            prune(root, inway);
+        }
+        if (failed.isEmpty()) {
+            for (String dir : dirs) {
+                File folder = Utils.join(root, dir);
+                if (!folder.exists() && folder.mkdir()) {
+                    created.add(dir);
+                }
+            }
+            writers().invoke(new Checkout(root, names, hashes, touched,
+                                          failed, 0, names.length));
+        }
+        if (!failed.isEmpty()) {
+            restore(root, names, touched, previous);
+            for (int i = created.size() - 1; i >= 0; i -= 1) {
+                Utils.join(root, created.get(i)).delete();
+            }
+            for (int i = 0; i < cleared.length; i += 1) {
+                if (clearedtouched[i]) {
+                    Utils.join(root, cleared[i]).getParentFile().mkdirs();
+                }
+            }
+            restore(root, cleared, clearedtouched, previous);
+            throw new GitletException(report(failed), ROLLED_BACK);
+        }
+        for (String name : others) {
+            Utils.join(root, name).delete();
+        }
+        prune(root, others);
+    }
+
+    /** Put back the files NAMES under ROOT that are marked in TOUCHED,
+     *  writing the blobs PREVIOUS maps them to and deleting those it maps
+     *  to none.*/
+    private static void restore(File root, String[] names, boolean[] touched,
+                                Map<String, String> previous) {
+        List<String> replaced = new ArrayList<>();
+        for (int i = 0; i < names.length; i += 1) {
+            if (touched[i]) {
+                replaced.add(names[i]);
+            }
+        }
+        String[] restored = new String[replaced.size()];
+        for (int i = 0; i < restored.length; i += 1) {
+            restored[i] = previous.get(replaced.get(i));
+        }
+        writers().invoke(new Checkout(root,
+                replaced.toArray(new String[0]), restored,
+                new boolean[restored.length],
+                new ConcurrentSkipListMap<>(), 0, restored.length));
+    }
+
+    /** Return the directories the file NAME is in, relative to the root,
+     *  outermost first.*/
+    private static List<String> parents(String name) {
+        List<String> dirs = new ArrayList<>();
+        for (int slash = name.indexOf('/'); slash > 0;
+             slash = name.indexOf('/', slash + 1)) {
+            dirs.add(name.substring(0, slash));
+        }
+        return dirs;
+    }
+
+    /** Remove the directories under ROOT that held the deleted files
+     *  NAMES and are now empty, innermost first.*/
+    private static void prune(File root, Collection<String> names) {
+        for (String name : names) {
+            List<String> dirs = parents(name);
+            int i = dirs.size() - 1;
+            while (i >= 0 && Utils.join(root, dirs.get(i)).isDirectory()
+                   && Utils.join(root, dirs.get(i)).delete()) {
+                i -= 1;
+            }
+        }
+    }
+
+    /** Return the error message naming the files in FAILED, with the
+     *  errors they map to.*/
+    private static String report(Map<String, String> failed) {
+        StringBuilder msg = new StringBuilder();
+        msg.append("Cannot write ").append(failed.size())
+            .append(failed.size() == 1 ? " file:" : " files:");
+        int count = 0;
+        for (Map.Entry<String, String> entry : failed.entrySet()) {
+            if (count == MAX_REPORTED) {
+                msg.append("\n  ...");
+                break;
+            }
+            msg.append("\n  ").append(entry.getKey()).append(": ")
+                .append(entry.getValue());
+            count += 1;
+        }
+        return msg.toString();
+    }
+
+    /** Return the pool, creating it on first use.*/
+    private static synchronized ForkJoinPool pool() {
+        if (_pool == null) {
+            _pool = new ForkJoinPool(
+                    Runtime.getRuntime().availableProcessors());
+        }
+        return _pool;
+    }
+
+    /** Return the pool files are written on, with checkout.workers
+     *  threads, creating it on first use.*/
+    private static synchronized ForkJoinPool writers() {
+        if (_writers == null) {
+            int cores = Runtime.getRuntime().availableProcessors();
+            _writers = new ForkJoinPool(Math.max(1, Config.getint(
+                    WRITERS_KEY, Math.max(MIN_WRITERS, cores))));
+        }
+        return _writers;
+    }
+
+    /** Task listing the plain files under one directory.*/
+    private static class Walk extends RecursiveTask<List<String>> {
+
+        /** Serial version.*/
+        private static final long serialVersionUID = 1L;
+
+        /** Directory to list.*/
+        private final File _dir;
+        /** Name of the directory relative to the root, ending in '/', or
+         *  empty for the root.*/
+        private final String _prefix;
+
+        /** Task listing DIR, whose name relative to the root is PREFIX.*/
+        Walk(File dir, String prefix) {
+            _dir = dir;
+            _prefix = prefix;
+        }
+
+        @Override
+        protected List<String> compute() {
+            List<String> names = new ArrayList<>();
+            String[] entries = _dir.list();
+            if (entries == null) {
+                return names;
+            }
+            Arrays.sort(entries);
+            List<Walk> subdirs = new ArrayList<>();
+            for (String entry : entries) {
+                File file = new File(_dir, entry);
+                if (Files.isSymbolicLink(file.toPath())) {
+                    continue;
+                } else if (file.isFile()) {
+                    names.add(_prefix + entry);
+                } else if (file.isDirectory() && !(_prefix.isEmpty()
+                        && entry.equals(Main.MAIN_FOLDER.getName()))) {
+                    subdirs.add(new Walk(file, _prefix + entry + "/"));
+                }
+            }
+            for (Walk walk : invokeAll(subdirs)) {
+                names.addAll(walk.join());
+            }
+            return names;
+        }
+    }
+
+    /** Task hashing a range of files.*/
+    private static class Hash extends RecursiveAction {
+
+        /** Serial version.*/
+        private static final long serialVersionUID = 1L;
+
+        /** Permits for the bytes held by all hashing tasks.*/
+        private static final Semaphore IN_FLIGHT =
+            new Semaphore(MAX_IN_FLIGHT);
+
+        /** The root of the files.*/
+        private final File _root;
+        /** The names of the files.*/
+        private final String[] _names;
+        /** The hashes of the files, filled in by the task.*/
+        private final String[] _hashes;
+        /** Whether the files are also written to the object store.*/
+        private final boolean _store;
+        /** First index of the range.*/
+        private final int _start;
+        /** End of the range.*/
+        private final int _end;
+
+        /** Task hashing the files NAMES under ROOT from index START to END
+         *  into HASHES, also storing them if STORE.*/
+        Hash(File root, String[] names, String[] hashes, boolean store,
+             int start, int end) {
+            _root = root;
+            _names = names;
+            _hashes = hashes;
+            _store = store;
+            _start = start;
+            _end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (_end - _start > BATCH) {
+                int mid = (_start + _end) >>> 1;
+                invokeAll(new Hash(_root, _names, _hashes, _store,
+                                   _start, mid),
+                          new Hash(_root, _names, _hashes, _store,
+                                   mid, _end));
+                return;
+            }
+            for (int i = _start; i < _end; i += 1) {
+                _hashes[i] = hash(_names[i]);
+            }
+        }
+
+        /** Return the hash of the content of the file NAME, or null if it
+         *  is not a plain file, storing the content if _STORE.*/
+        private String hash(String name) {
+            File file = Utils.join(_root, name);
+            if (!file.isFile()) {
+                return null;
+            }
+            long size = file.length();
+            boolean chunked = _store && Chunker.enabled(name, size);
+            int permits = chunked ? 2 * Chunker.MAX_CHUNK
+                : size <= SMALL_FILE ? (int) size : Codec.BUFFER_SIZE;
+            IN_FLIGHT.acquireUninterruptibly(permits);
+            try {
+                if (chunked) {
+                    try (InputStream in = new FileInputStream(file)) {
+                        return Chunker.write(in);
+                    }
+                }
+                if (size <= SMALL_FILE) {
+                    byte[] content = Files.readAllBytes(file.toPath());
+                    return _store ? ObjectStore.write(content)
+                        : ObjectStore.hash(content);
+                }
+                if (_store) {
+                    try (InputStream in = new FileInputStream(file)) {
+                        return ObjectStore.write(in);
+                    }
+                }
+                return ObjectStore.hash(file);
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            } finally {
+                IN_FLIGHT.release(permits);
+            }
+        }
+    }
+
+    /** Task writing a range of blobs to the working tree.*/
+    private static class Checkout extends RecursiveAction {
+
+        /** Serial version.*/
+        private static final long serialVersionUID = 1L;
+
+        /** The root of the files.*/
+        private final File _root;
+        /** The names of the files.*/
+        private final String[] _names;
+        /** The hashes of their blobs, null for files to delete.*/
+        private final String[] _hashes;
+        /** Marks of the files the task started to write or delete.*/
+        private final boolean[] _touched;
+        /** The errors of the files that failed, keyed by name.*/
+        private final Map<String, String> _failed;
+        /** First index of the range.*/
+        private final int _start;
+        /** End of the range.*/
+        private final int _end;
+
+        /** Task writing the blobs with HASHES to the files NAMES under
+         *  ROOT from index START to END, deleting those with no hash,
+         *  marking in TOUCHED the files it changes and recording errors
+         *  in FAILED.*/
+        Checkout(File root, String[] names, String[] hashes,
+                 boolean[] touched, Map<String, String> failed, int start,
+                 int end) {
+            _root = root;
+            _names = names;
+            _hashes = hashes;
+            _touched = touched;
+            _failed = failed;
+            _start = start;
+            _end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (_end - _start > BATCH) {
+                int mid = (_start + _end) >>> 1;
+                invokeAll(new Checkout(_root, _names, _hashes, _touched,
+                                       _failed, _start, mid),
+                          new Checkout(_root, _names, _hashes, _touched,
+                                       _failed, mid, _end));
+                return;
+            }
+            for (int i = _start; i < _end; i += 1) {
+                File file = Utils.join(_root, _names[i]);
+                _touched[i] = true;
+                try {
+                    if (_hashes[i] == null) {
+                        file.delete();
+                    } else {
+                        Blob.checkout(_hashes[i], file);
+                    }
+                } catch (RuntimeException excp) {
+                    _failed.put(_names[i], String.valueOf(
+                            excp.getMessage()));
+                }
+            }
+        }
+    }
+}